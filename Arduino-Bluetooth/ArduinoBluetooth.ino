@@ -4,14 +4,26 @@
  *               Bluetooth dongle to the robot and an Android phone
  *               running Blueberry application
  * Author:       Karl Kangur <karl.kangur@gmail.com>
- * Version:      1.0
+ * Version:      1.2
  * Website:      github
  */
 #define LED PC(2)
+// first byte of a binary speed frame, never the first character of a text command
+#define OP_SPEED 0x80
+#define SPEED_FRAME_LENGTH 5
+// number of commands that fit in the 64 byte serial buffer, sent when asked with "i,w"
+#define WINDOW 3
 
 char serialData[32];
 byte com = 0, error = 0, timerCounter = 0;
 boolean connected;
+// replies start with the sequence number of the command once asked with "i,w", reset by the timer interrupt
+volatile boolean sequenced = false;
+volatile int lastSequence = -1;
+// bit n is set once the command numbered lastSequence - n has run
+volatile byte ran = 0;
+// number of the last command that set the speed (s or r), older ones are not run
+volatile int lastSpeed = -1;
 
 void setup()
 {
@@ -38,53 +50,30 @@ void loop()
     // clear timeout
     com = timerCounter;
 
+    if(Serial.peek() == OP_SPEED)
+    {
+      readSpeedFrame();
+      return;
+    }
+
     Serial.readBytesUntil('\n', serialData, 31);
-    switch(serialData[0])
+    char* command = serialData;
+    if(serialData[0] == '#')
     {
-    case 0:
-      Serial.println(0);
-      break;
-    case 'a':
-      // use as a small and slow oscilloscope
-      int pin;
-      if(parseCommand(serialData, &pin, 1) && pin >= 0 && pin <= 7)
-      {
-        // stop loop by sending something to the robot
-        while(!Serial.available() && connected)
-        {
-          Serial.println(analogRead(pin));
-        }
-      }
-      else
+      // sequenced command: #sequence;command
+      command = strchr(serialData, ';');
+      if(command == NULL)
       {
-        Serial.println("Error while setting ADC pin");
+        Serial.println("Command not recognised");
       }
-      break;
-    case 's':
-      // set left and right motor speeds
-      int speed[2];
-      if(parseCommand(serialData, speed, 2))
+      else if(beginReply(atoi(serialData + 1), command[1] == 's' || command[1] == 'r'))
       {
-        setSpeed(speed[0], speed[1]);
-        Serial.println("New speed set");
+        execute(command + 1);
       }
-      else
-      {
-        Serial.println("Error while setting new speed");
-      }
-      break;
-    case 'i':
-      // inform about robot
-      Serial.println("Zygote 1.0");
-      break;
-    case 'r':
-      // quickly stop
-      reset();
-      Serial.println("Robot reset");
-      break;
-    default:
-      // inform user of non existing command
-      Serial.println("Command not recognised");
+    }
+    else
+    {
+      execute(command);
     }
 
     // clear serialData array
@@ -92,6 +81,154 @@ void loop()
   }
 }
 
+/**
+ * Starts the reply to a sequenced command with its sequence number. Several
+ * commands can be on their way at once and one can overtake another when its
+ * first copy got lost, so the sketch remembers which of the last 8 numbers
+ * have run. A command that has already run is a copy sent again because the
+ * reply got lost: it's answered but not run. So is a speed older than the last
+ * speed run, or the robot would go back to an old speed, other commands run
+ * even if they come late. The numbers go from 0 to 255 and start over, a
+ * number up to 127 behind the last one is older.
+ *
+ * @params sequence The sequence number of the command
+ * @params speed True if the command sets the speed (s or r)
+ * @return False if the command must not be run
+ */
+boolean beginReply(int sequence, boolean speed)
+{
+  Serial.print('#');
+  Serial.print(sequence);
+  Serial.print(';');
+  byte ahead = sequence - lastSequence;
+  if(lastSequence < 0)
+  {
+    ran = 1;
+    lastSequence = sequence;
+  }
+  else if(ahead != 0 && ahead < 128)
+  {
+    // newer than all the others
+    ran = ahead < 8 ? (ran << ahead) | 1 : 1;
+    lastSequence = sequence;
+  }
+  else
+  {
+    byte behind = lastSequence - sequence;
+    byte speedBehind = lastSpeed - sequence;
+    // already run, too old to tell or a speed older than the current one
+    if(behind >= 8 || (ran & (1 << behind)) || (speed && lastSpeed >= 0 && speedBehind != 0 && speedBehind < 128))
+    {
+      Serial.println("Duplicate");
+      return false;
+    }
+    ran |= 1 << behind;
+  }
+  if(speed)
+  {
+    lastSpeed = sequence;
+  }
+  return true;
+}
+
+void execute(char* command)
+{
+  switch(command[0])
+  {
+  case 0:
+    Serial.println(0);
+    break;
+  case 'a':
+    // use as a small and slow oscilloscope
+    int pin;
+    if(parseCommand(command, &pin, 1) && pin >= 0 && pin <= 7)
+    {
+      // stop loop by sending something to the robot
+      while(!Serial.available() && connected)
+      {
+        Serial.println(analogRead(pin));
+      }
+    }
+    else
+    {
+      Serial.println("Error while setting ADC pin");
+    }
+    break;
+  case 's':
+    // set left and right motor speeds
+    int speed[2];
+    if(parseCommand(command, speed, 2))
+    {
+      setSpeed(speed[0], speed[1]);
+      Serial.println("New speed set");
+    }
+    else
+    {
+      Serial.println("Error while setting new speed");
+    }
+    break;
+  case 'i':
+    // inform about robot, "i,b,w" asks if binary speed frames and sequence numbers are understood
+    Serial.print("Zygote 1.2");
+    if(strstr(command, ",b") != NULL)
+    {
+      Serial.print(",b");
+    }
+    sequenced = strstr(command, ",w") != NULL;
+    // the numbers start over with the new connection
+    lastSequence = -1;
+    lastSpeed = -1;
+    if(sequenced)
+    {
+      Serial.print(",w");
+      Serial.print(WINDOW);
+    }
+    Serial.println();
+    break;
+  case 'r':
+    // quickly stop
+    reset();
+    Serial.println("Robot reset");
+    break;
+  default:
+    // inform user of non existing command
+    Serial.println("Command not recognised");
+  }
+}
+
+/**
+ * Binary version of the "s,left,right" command: opcode, left speed, right
+ * speed (signed bytes), sequence number and a checksum byte that makes the sum
+ * of all the bytes 0. It has a fixed length so there's no new line at the end.
+ */
+void readSpeedFrame()
+{
+  byte frame[SPEED_FRAME_LENGTH], sum = 1;
+  if(Serial.readBytes((char*) frame, SPEED_FRAME_LENGTH) == SPEED_FRAME_LENGTH)
+  {
+    sum = 0;
+    for(byte i = 0; i < SPEED_FRAME_LENGTH; i++)
+    {
+      sum += frame[i];
+    }
+  }
+
+  if(sum == 0)
+  {
+    // the sequence number can only be trusted once the checksum is right
+    if(sequenced && !beginReply(frame[3], true))
+    {
+      return;
+    }
+    setSpeed((signed char) frame[1], (signed char) frame[2]);
+    Serial.println("New speed set");
+  }
+  else
+  {
+    Serial.println("Error while setting new speed");
+  }
+}
+
 void reset()
 {
   connected = false;
@@ -173,6 +310,10 @@ ISR(TIMER2_OVF_vect)
     // interpret as communication failure
     digitalWrite(LED, LOW);
     reset();
+    // the next connection starts with a new handshake
+    sequenced = false;
+    lastSequence = -1;
+    lastSpeed = -1;
   }
   com = 0;
   timerCounter = 0;
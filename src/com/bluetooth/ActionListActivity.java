@@ -50,7 +50,7 @@ public class ActionListActivity extends BluetoothActivity
 		activityList.add(new Action("Touch Control", "Control robot's movements by touch", "TouchControl"));
 		//activityList.add(new Action("Arrow Control", "Simplistic control with arrows", "ArrowControl"));
 		activityList.add(new Action("Voice Control", "Control robot with oral instructions", "VoiceControl"));
-		//activityList.add(new Action("Program", "Save and replay a set of instructions", "Program"));
+		activityList.add(new Action("Program", "Save and replay a set of instructions", "Program"));
 		//activityList.add(new Action("Keypad", "Send numbers from 1 to 9 for custom actions", "Keypad"));
 		activityList.add(new Action("Wi-Fi Control", "Use a computer to remotely control from a browser", "WiFiControl"));
 		
@@ -61,12 +61,13 @@ public class ActionListActivity extends BluetoothActivity
 		// TODO: Organize this into better categories
 		// Miscellaneous
 		activityList.add(new Action("Send Data", "Send custom commands to robot", "SendData"));
+		activityList.add(new Action("Link Statistics", "Round trip time of the commands", "LinkStatistics"));
 		// Maybe put this one in the API
 		//activityList.add(new Action("Transmit Data", "Transmit data over Wi-Fi via a GET requests", "TransmitData"));
 		//activityList.add(new Action("Sound", "Make sounds by toggling the motor direction", "Sound"));
 		//activityList.add(new Action("GPS Position", "Send the robot anywhere on earth", "GPSPosition"));
 		//activityList.add(new Action("Motion Detection", "Use the camera to sense movement", "MotionDetection"));
-		//activityList.add(new Action("Oscilloscope", "Use the ADC as an oscilloscope", "Oscilloscope"));
+		activityList.add(new Action("Oscilloscope", "Use the ADC as an oscilloscope", "Oscilloscope"));
 		//activityList.add(new Action("Function Generator", "Use the PWM as a square function generator", "FunctionGenerator"));
 
 		// TODO: Make this API
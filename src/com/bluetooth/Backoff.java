@@ -0,0 +1,76 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+/**
+ * This class gives the delays between reconnection attempts: the delay doubles
+ * after each failed attempt up to a maximum, and after a given number of
+ * attempts it's time to give up.
+ */
+public class Backoff
+{
+	private final long initialDelay, maxDelay;
+	private final int maxAttempts;
+	private int attempts;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param initialMillis
+	 *            Delay before the first attempt
+	 * @param maxMillis
+	 *            Longest delay between two attempts
+	 * @param attemptLimit
+	 *            Number of attempts before giving up
+	 */
+	public Backoff(long initialMillis, long maxMillis, int attemptLimit)
+	{
+		initialDelay = initialMillis;
+		maxDelay = maxMillis;
+		maxAttempts = attemptLimit;
+	}
+
+	/**
+	 * @return Delay in milliseconds before the next attempt or -1 when all the
+	 *         attempts have been used
+	 */
+	public long next()
+	{
+		if(attempts == maxAttempts)
+		{
+			return -1;
+		}
+		long delay = Math.min(maxDelay, initialDelay << Math.min(attempts, 30));
+		attempts++;
+		return delay;
+	}
+
+	/**
+	 * @return Number of attempts given since the last reset
+	 */
+	public int getAttempts()
+	{
+		return attempts;
+	}
+
+	/**
+	 * Starts over from the initial delay, called once reconnected.
+	 */
+	public void reset()
+	{
+		attempts = 0;
+	}
+}
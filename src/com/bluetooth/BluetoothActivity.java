@@ -15,6 +15,8 @@
 
 package com.bluetooth;
 
+import java.util.ArrayList;
+
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
@@ -22,6 +24,7 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 import android.view.MenuItem;
+import android.widget.Toast;
 
 /**
  * This class is used to build different Bluetooth activities for the robot to
@@ -33,6 +36,10 @@ public class BluetoothActivity extends Activity implements Handler.Callback
 	private static BluetoothRemoteControlApp appState;
 	// When launching a new activity and this one stops it doesn't mean something bad (no connection loss)
 	protected boolean preventCancel;
+	// Activities showing the sent commands set this to receive MSG_WRITE messages
+	protected boolean echoWrites;
+	// Subscriptions to the message bus, they end with the activity
+	private final ArrayList<MessageBus.Subscription> subscriptions = new ArrayList<MessageBus.Subscription>();
 	private static String TAG;
 
 	@Override
@@ -50,6 +57,40 @@ public class BluetoothActivity extends Activity implements Handler.Callback
 		return appState.write(message);
 	}
 
+	protected boolean writeSpeed(int left, int right)
+	{
+		// Send wheel speeds to the Bluetooth device without building a String
+		return appState.writeSpeed(left, right);
+	}
+
+	/**
+	 * Chooses the robots the commands are sent to when several are connected.
+	 * 
+	 * @param target
+	 *            Name of a robot, a group or ConnectionManager.ALL
+	 */
+	protected void setTarget(String target)
+	{
+		appState.setTarget(target);
+	}
+
+	/**
+	 * Receives the messages of the robots on a thread of its own, for work that
+	 * should not wait for the UI. The subscription ends when the activity
+	 * finishes.
+	 * 
+	 * @param subscriber
+	 *            Gets the messages, not on the UI thread
+	 * @param kinds
+	 *            MessageBus kinds combined with |
+	 */
+	protected MessageBus.Subscription subscribe(MessageBus.Subscriber subscriber, int kinds)
+	{
+		MessageBus.Subscription subscription = appState.subscribe(subscriber, kinds);
+		subscriptions.add(subscription);
+		return subscription;
+	}
+
 	protected void disconnect()
 	{
 		// Disconnect from the Bluetooth device
@@ -71,6 +112,17 @@ public class BluetoothActivity extends Activity implements Handler.Callback
 			setResult(BluetoothRemoteControlApp.MSG_CANCEL, new Intent());
 			finish();
 			break;
+		case BluetoothRemoteControlApp.MSG_RECONNECTING:
+			// The link was lost, the activity keeps running while it's being reopened
+			getActionBar().setSubtitle("Reconnecting (attempt " + msg.obj + ")");
+			break;
+		case BluetoothRemoteControlApp.MSG_RECONNECTED:
+			getActionBar().setSubtitle(null);
+			break;
+		case BluetoothRemoteControlApp.MSG_ROBOT_DISCONNECTED:
+			// The other robots are still connected, keep going
+			Toast.makeText(this, "Lost " + msg.obj, Toast.LENGTH_SHORT).show();
+			break;
 		}
 		return false;
 	}
@@ -90,6 +142,7 @@ public class BluetoothActivity extends Activity implements Handler.Callback
 		if(BluetoothRemoteControlApp.D) Log.i(TAG, "Set handler");
 		// Set the handler to receive messages from the main application class
 		appState.setActivityHandler(new Handler(this));
+		appState.setWriteEcho(echoWrites);
 		preventCancel = false;
 		super.onResume();
 	}
@@ -122,6 +175,11 @@ public class BluetoothActivity extends Activity implements Handler.Callback
 	{
 		// Remove the handler from the main application class
 		appState.setActivityHandler(null);
+		for(int i = 0; i < subscriptions.size(); i++)
+		{
+			appState.unsubscribe(subscriptions.get(i));
+		}
+		subscriptions.clear();
 		super.finish();
 	}
 
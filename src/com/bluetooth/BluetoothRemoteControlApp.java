@@ -15,22 +15,23 @@
 
 package com.bluetooth;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.UUID;
+
 import android.app.Application;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
 import android.util.Log;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread for connecting with a device,
- * a thread for performing data transmissions when connected and a timeout
- * thread that cancels the connection when too much time has passed since last
- * communication.
+ * connections with other devices. The connection itself is handled by a
+ * Connection object over an RFCOMM transport, this class forwards its events
+ * to the current activity.
+ * <p>
+ * Several robots can be connected at once, each with its own connection kept by
+ * a ConnectionManager. The commands go to all of them unless the activity
+ * chose a single robot or a group.
  * <p>
  * The application is built around this Bluetooth managing class, where
  * different activities can use it to send and receive data by using the
@@ -40,26 +41,34 @@ import android.util.Log;
  * If the connection is lost/broken/has failed/disconnected, the current
  * activity that is using it (that has set activityHander) should finish (a
  * message is dispatched to the current activityHander Handler). Then the
- * application will start with the Bluetooth device activity over again.
+ * application will start with the Bluetooth device activity over again. A link
+ * that drops after being connected is first reopened a few times, the activity
+ * only gets the reconnecting and reconnected messages meanwhile.
+ * <p>
+ * The received lines and the sent commands go through a MessageBus. The
+ * current activity gets them as MSG_READ and MSG_WRITE messages, anything else
+ * that needs them (like a decoder getting every line) subscribes to the bus
+ * and runs on its own thread instead of waiting for the UI.
  */
-public class BluetoothRemoteControlApp extends Application
+public class BluetoothRemoteControlApp extends Application implements Connection.Listener
 {
 	private final static String TAG = "Blueberry";
 	// Debug flag
 	public final static boolean D = false;
 
-	// Time between sending the idle filler to confirm communication, must be smaller than the timeout constant.
-	private final int minCommInterval = 900;
-	// Time after which the communication is deemed dead
-	private final int timeout = 3000;
-	private long lastComm;
-
 	// Member fields
-	private BluetoothThread bluetoothThread;
-	private TimeoutThread timeoutThread;
+	private final ConnectionManager manager = new ConnectionManager(this);
+	private final MessageBus bus = new MessageBus();
 	private Handler activityHandler;
-	private int state;
-	private boolean busy, stoppingConnection;
+	// Hands the messages of the bus to the current activity
+	private MessageBus.Subscription activitySubscription;
+	// Robot or group the commands of the activities go to
+	private volatile String target = ConnectionManager.ALL;
+	// Round trip times of the connections that have ended
+	private final LatencyStats pastStats = new LatencyStats();
+	// Records the commands of the activities when set
+	private volatile CommandRecorder recorder;
+	private volatile TrafficCapture capture;
 
 	// Constants to indicate message contents
 	public static final int MSG_OK = 0;
@@ -67,24 +76,23 @@ public class BluetoothRemoteControlApp extends Application
 	public static final int MSG_WRITE = 2;
 	public static final int MSG_CANCEL = 3;
 	public static final int MSG_CONNECTED = 4;
+	public static final int MSG_RECONNECTING = 5;
+	public static final int MSG_RECONNECTED = 6;
+	// One of several robots has been disconnected, the others are still there
+	public static final int MSG_ROBOT_DISCONNECTED = 7;
 
 	// General purpose constants to be used inside activities as callback values
 	public static final int MSG_1 = 10;
 	public static final int MSG_2 = 11;
 	public static final int MSG_3 = 12;
 
-	// Constants that indicate the current connection state
-	private static final int STATE_NONE = 0;
-	private static final int STATE_CONNECTING = 1;
-	private static final int STATE_CONNECTED = 2;
-
 	/**
 	 * Constructor. Prepares a new Bluetooth session.
 	 */
 	public BluetoothRemoteControlApp()
 	{
-		state = STATE_NONE;
 		activityHandler = null;
+		setWriteEcho(false);
 	}
 
 	/**
@@ -98,6 +106,58 @@ public class BluetoothRemoteControlApp extends Application
 		activityHandler = handler;
 	}
 
+	/**
+	 * Sets if sent commands are shown to the activity with MSG_WRITE messages.
+	 * 
+	 * @param echo
+	 *            True to receive MSG_WRITE messages
+	 */
+	public synchronized void setWriteEcho(boolean echo)
+	{
+		if(activitySubscription != null)
+		{
+			bus.unsubscribe(activitySubscription);
+		}
+		activitySubscription = subscribe(new MessageBus.Subscriber()
+		{
+			public void onMessage(int kind, Connection source, String text)
+			{
+				sendMessage(kind == MessageBus.WRITE ? MSG_WRITE : MSG_READ, text);
+			}
+		}, echo ? MessageBus.ALL : MessageBus.READ);
+	}
+
+	/**
+	 * Receives the messages of all the robots on a thread of its own.
+	 * 
+	 * @param subscriber
+	 *            Gets the messages
+	 * @param kinds
+	 *            MessageBus kinds combined with |
+	 * @return The subscription to give to unsubscribe()
+	 */
+	public synchronized MessageBus.Subscription subscribe(MessageBus.Subscriber subscriber, int kinds)
+	{
+		MessageBus.Subscription subscription = bus.subscribe(subscriber, kinds);
+		updateEchoWrites();
+		return subscription;
+	}
+
+	public synchronized void unsubscribe(MessageBus.Subscription subscription)
+	{
+		bus.unsubscribe(subscription);
+		updateEchoWrites();
+	}
+
+	/**
+	 * The connections only make the text of the sent commands if someone wants
+	 * it.
+	 */
+	private void updateEchoWrites()
+	{
+		manager.setEchoWrites((bus.getKinds() & MessageBus.WRITE) != 0);
+	}
+
 	/**
 	 * Sends a message to the current activity registered to the activityHandler
 	 * variable.
@@ -117,350 +177,259 @@ public class BluetoothRemoteControlApp extends Application
 	}
 
 	/**
-	 * Set the current state of the chat connection
+	 * Initiate a connection to a remote Bluetooth device.
 	 * 
-	 * @param newState
-	 *            An integer defining the new connection state
+	 * @param device
+	 *            The BluetoothDevice to connect
 	 */
-	private synchronized void setState(int newState)
+	public void connect(BluetoothDevice device)
 	{
-		if(D)
-			Log.i(TAG, "Connection status: " + state + " -> " + newState);
-		state = newState;
+		// Modules of the same model often share a name, only the address tells them apart
+		connect(device.getAddress(), new RfcommTransport(device));
 	}
 
 	/**
-	 * Updates the communication time counter, use with the timeout thread to
-	 * check for broken connection.
+	 * Initiate a connection to a device over any transport, the robot is
+	 * addressed with the name of the transport.
+	 * 
+	 * @param transport
+	 *            Link to the device
 	 */
-	private synchronized void updateLastComm()
+	public void connect(Transport transport)
 	{
-		lastComm = System.currentTimeMillis();
+		connect(transport.getName(), transport);
 	}
 
 	/**
-	 * Start the ConnectThread to initiate a connection to a remote device.
+	 * Initiate a connection to a device over any transport. The other robots
+	 * stay connected, a connection to a robot with the same id is replaced.
 	 * 
-	 * @param device
-	 *            The BluetoothDevice to connect
+	 * @param id
+	 *            Name the robot is addressed with, the transport's name is only
+	 *            shown to the user
+	 * @param transport
+	 *            Link to the device
 	 */
-	public synchronized void connect(BluetoothDevice device)
+	public synchronized void connect(String id, Transport transport)
 	{
 		if(D)
-			Log.i(TAG, "Connecting to " + device.getName());
-		stoppingConnection = false;
-		busy = false;
+			Log.i(TAG, "Connecting to " + transport.getName() + " (" + id + ")");
 
-		// Cancel any thread currently running a connection
-		if(bluetoothThread != null)
+		// Cancel the connection to the same robot if it's still running
+		Connection old = manager.get(id);
+		if(old != null)
 		{
-			bluetoothThread.cancel();
-			bluetoothThread = null;
+			pastStats.add(old.getStats());
 		}
 
-		setState(STATE_CONNECTING);
-
-		// Start the thread to connect with the given device
-		bluetoothThread = new BluetoothThread(device);
-		bluetoothThread.start();
+		Connection connection = manager.open(id, transport);
+		connection.setEchoWrites((bus.getKinds() & MessageBus.WRITE) != 0);
+	}
 
-		// Start the timeout thread to check the connecting status
-		timeoutThread = new TimeoutThread();
-		timeoutThread.start();
+	/**
+	 * @return The robots, each one has its own connection
+	 */
+	public ConnectionManager getConnectionManager()
+	{
+		return manager;
 	}
 
 	/**
-	 * This thread runs during a connection with a remote device. It handles the
-	 * initial connection and all incoming and outgoing transmissions.
+	 * Sets the robots the commands are sent to.
+	 * 
+	 * @param robots
+	 *            Id of a robot, a group made with the connection manager or
+	 *            ConnectionManager.ALL
 	 */
-	private class BluetoothThread extends Thread
+	public void setTarget(String robots)
 	{
-		private final BluetoothSocket socket;
-		private InputStream inStream;
-		private OutputStream outStream;
+		target = robots;
+	}
 
-		public BluetoothThread(BluetoothDevice device)
+	/**
+	 * @return Round trip times of the connections currently open put
+	 *         together, null if there are none
+	 */
+	public LatencyStats getSessionStats()
+	{
+		Connection[] connections = manager.getConnections();
+		if(connections.length == 0)
 		{
-			BluetoothSocket tmp = null;
-			try
-			{
-				// General purpose UUID
-				tmp = device.createInsecureRfcommSocketToServiceRecord(UUID.fromString("00001101-0000-1000-8000-00805F9B34FB"));
-			}
-			catch(IOException e)
-			{
-				e.printStackTrace();
-			}
-			socket = tmp;
+			return null;
 		}
-
-		public void run()
+		LatencyStats stats = new LatencyStats();
+		for(int i = 0; i < connections.length; i++)
 		{
-			// Connect to the socket
-			try
-			{
-				// Blocking function, needs the timeout
-				if(D)
-					Log.i(TAG, "Connecting to socket");
-				socket.connect();
-			}
-			catch(IOException e)
-			{
-				// If the user didn't cancel the connection then it has failed (timeout)
-				if(!stoppingConnection)
-				{
-					if(D)
-						Log.e(TAG, "Cound not connect to socket");
-					e.printStackTrace();
-					try
-					{
-						socket.close();
-					}
-					catch(IOException e1)
-					{
-						if(D)
-							Log.e(TAG, "Cound not close the socket");
-						e1.printStackTrace();
-					}
-					disconnect();
-				}
-				return;
-			}
+			stats.add(connections[i].getStats());
+		}
+		return stats;
+	}
 
-			// Connected
-			setState(STATE_CONNECTED);
-			// Send message to activity to inform of success
-			sendMessage(MSG_CONNECTED, null);
+	/**
+	 * @return Round trip times of all the connections that have ended
+	 */
+	public LatencyStats getPastStats()
+	{
+		return pastStats;
+	}
 
-			// Get the BluetoothSocket input and output streams
-			try
-			{
-				inStream = socket.getInputStream();
-				outStream = socket.getOutputStream();
-			}
-			catch(IOException e)
-			{
-				// Failed to get the streams
-				disconnect();
-				e.printStackTrace();
-				return;
-			}
+	public void onConnected(Connection source)
+	{
+		// Send message to activity to inform of success, with the id the robot was connected with
+		sendMessage(MSG_CONNECTED, manager.getId(source));
+	}
 
-			byte[] buffer = new byte[1024];
-			byte ch;
-			int bytes;
-			String input;
+	public void onRead(Connection source, String line)
+	{
+		// Hand the line to the subscribers, the UI activity is one of them
+		bus.publish(MessageBus.READ, source, line);
+	}
 
-			// Keep listening to the InputStream while connected
-			while(true)
-			{
-				try
-				{
-					// Make a packet, use \n (new line or NL) as packet end
-					// println() used in Arduino code adds \r\n to the end of the stream
-					bytes = 0;
-					while((ch = (byte) inStream.read()) != '\n')
-					{
-						buffer[bytes++] = ch;
-					}
-					// Prevent read errors (if you mess enough with it)
-					if(bytes > 0)
-					{
-						// The carriage return (\r) character has to be removed
-						input = new String(buffer, "UTF-8").substring(0, bytes - 1);
-
-						if(D)
-							Log.v(TAG, "Read: " + input);
-
-						// Empty character is considered as a filler to keep the connection alive, don't forward that to the activity
-						if(!input.equals("0"))
-						{
-							// Send the obtained bytes to the UI Activity if any
-							sendMessage(MSG_READ, input);
-						}
-					}
-					busy = false;
-					// Update last communication time to prevent timeout
-					updateLastComm();
-
-				}
-				catch(IOException e)
-				{
-					// read() will inevitably throw an error, even when just disconnecting
-					if(!stoppingConnection)
-					{
-						if(D)
-							Log.e(TAG, "Failed to read");
-						e.printStackTrace();
-						disconnect();
-					}
-					break;
-				}
-			}
-		}
+	public void onWrite(Connection source, String command)
+	{
+		// Only called when a subscriber wants the sent commands
+		bus.publish(MessageBus.WRITE, source, command);
+	}
 
-		public boolean write(String out)
-		{
-			if(outStream == null)
-			{
-				return false;
-			}
+	public void onReconnecting(Connection source, int attempt)
+	{
+		// The activity stays, it only shows the status
+		sendMessage(MSG_RECONNECTING, attempt);
+	}
 
-			if(D)
-				Log.v(TAG, "Write: " + out);
-			try
-			{
-				if(out != null)
-				{
-					// Show sent message to the active activity
-					sendMessage(MSG_WRITE, out);
-					outStream.write(out.getBytes());
-				}
-				else
-				{
-					// This is a special case for the filler
-					outStream.write(0);
-				}
-				// End packet with a new line
-				outStream.write('\n');
-				return true;
-			}
-			catch(IOException e)
-			{
-				e.printStackTrace();
-			}
-			return false;
-		}
+	public void onReconnected(Connection source)
+	{
+		sendMessage(MSG_RECONNECTED, source.getTransport().getName());
+	}
 
-		public void cancel()
+	public void onDisconnected(Connection source, String reason)
+	{
+		pastStats.add(source.getStats());
+		// The activities only end once no robot is left
+		if(manager.size() == 0)
 		{
-			try
-			{
-				if(inStream != null)
-				{
-					inStream.close();
-				}
-				if(outStream != null)
-				{
-					outStream.close();
-				}
-				if(socket != null)
-				{
-					socket.close();
-				}
-			}
-			catch(IOException e)
-			{
-				e.printStackTrace();
-			}
+			sendMessage(MSG_CANCEL, reason);
+		}
+		else
+		{
+			sendMessage(MSG_ROBOT_DISCONNECTED, source.getTransport().getName());
 		}
 	}
 
 	/**
-	 * Thread that checks communication status every 50 milliseconds. Used to
-	 * make sure the communication is and stays alive.
+	 * This method queues data to be sent to the Bluetooth device, it never
+	 * waits for the device. Speed commands replace the speed command that
+	 * hasn't been sent yet and the reset command ("r") is sent even if the
+	 * device has not answered the previous commands. It goes to the robots
+	 * chosen with setTarget(), all of them by default.
+	 * 
+	 * @param out
+	 *            String to send to the Bluetooth device
+	 * @return Success of failure to queue the command, true if it was queued
+	 *         for at least one robot
 	 */
-	private class TimeoutThread extends Thread
+	public boolean write(String out)
 	{
-		public TimeoutThread()
+		CommandRecorder current = recorder;
+		if(current != null)
 		{
-			// Set the time before first check
-			if(D)
-				Log.i(TAG, "Started timeout thread");
-			updateLastComm();
+			current.record(out);
 		}
+		return manager.write(target, out) > 0;
+	}
 
-		public void run()
+	/**
+	 * Queues new wheel speeds, same as write("s,left,right") without building
+	 * the text.
+	 * 
+	 * @param left
+	 *            Left wheel speed
+	 * @param right
+	 *            Right wheel speed
+	 * @return Success of failure to queue the command
+	 */
+	public boolean writeSpeed(int left, int right)
+	{
+		CommandRecorder current = recorder;
+		if(current != null)
 		{
-			while(state == STATE_CONNECTING || state == STATE_CONNECTED)
-			{
-				// I'm not sure that it's needed here, but it works
-				synchronized(BluetoothRemoteControlApp.this)
-				{
-					// Filler hash to confirm communication with device when idle
-					if(System.currentTimeMillis() - lastComm > minCommInterval && !busy && state == STATE_CONNECTED)
-					{
-						write(null);
-					}
-
-					// Communication timed out
-					if(System.currentTimeMillis() - lastComm > timeout)
-					{
-						if(D)
-							Log.e(TAG, "Timeout");
-						disconnect();
-						break;
-					}
-				}
-
-				// This thread should not run all the time
-				try
-				{
-					Thread.sleep(50);
-				}
-				catch(InterruptedException e)
-				{
-					e.printStackTrace();
-				}
-			}
+			current.recordSpeed(left, right);
 		}
+		return manager.writeSpeed(target, left, right) > 0;
 	}
 
 	/**
-	 * This method sends data to the Bluetooth device in an unsynchronized
-	 * manner, actually it calls the write() method inside the connected thread,
-	 * but it also makes sure the device is not busy. If "r" is sent (reset
-	 * flag) it will pass all flags and will be sent even if the device is busy.
+	 * Starts recording all the commands the activities give, until
+	 * stopRecording() is called.
 	 * 
-	 * @param out
-	 *            String to send to the Bluetooth device
-	 * @return Success of failure to write
+	 * @param file
+	 *            File to record to, it's replaced
+	 * @throws IOException
+	 *             When the file can't be written
 	 */
-	public boolean write(String out)
+	public synchronized void startRecording(File file) throws IOException
 	{
-		// The device hasn't finished processing last command, reset commands ("r") it always get sent
-		if(busy && !out.equals(out))
+		stopRecording();
+		recorder = new CommandRecorder(file);
+	}
+
+	/**
+	 * @return The recording under way, null if there's none
+	 */
+	public CommandRecorder getRecorder()
+	{
+		return recorder;
+	}
+
+	public synchronized void stopRecording()
+	{
+		if(recorder != null)
 		{
-			if(D)
-				Log.v(TAG, "Busy");
-			return false;
+			recorder.close();
+			recorder = null;
 		}
-		busy = true;
+	}
 
-		// Create temporary object
-		BluetoothThread r;
-		// Synchronize a copy of the BluetoothThread
-		synchronized(this)
+	/**
+	 * Starts saving all the frames sent and received by the robots, until
+	 * stopCapture() is called.
+	 * 
+	 * @param file
+	 *            File to save to, it's replaced
+	 * @throws IOException
+	 *             When the file can't be written
+	 */
+	public synchronized void startCapture(File file) throws IOException
+	{
+		stopCapture();
+		capture = new TrafficCapture(file, 4096);
+		manager.setCapture(capture);
+	}
+
+	/**
+	 * @return The capture under way, null if there's none
+	 */
+	public TrafficCapture getCapture()
+	{
+		return capture;
+	}
+
+	public synchronized void stopCapture()
+	{
+		if(capture != null)
 		{
-			// Make sure the connection is live
-			if(state != STATE_CONNECTED)
-			{
-				return false;
-			}
-			r = bluetoothThread;
+			manager.setCapture(null);
+			capture.close();
+			capture = null;
 		}
-		// Perform the write unsynchronized
-		return r.write(out);
 	}
 
 	/**
-	 * Stop all threads
+	 * Stop all threads, of all the robots
 	 */
 	public synchronized void disconnect()
 	{
-		// Do not stop twice
-		if(!stoppingConnection)
-		{
-			stoppingConnection = true;
-			if(D)
-				Log.i(TAG, "Stop");
-			if(bluetoothThread != null)
-			{
-				bluetoothThread.cancel();
-				bluetoothThread = null;
-			}
-			setState(STATE_NONE);
-			sendMessage(MSG_CANCEL, "Connection ended");
-		}
+		manager.disconnectAll();
+		target = ConnectionManager.ALL;
 	}
 }
@@ -0,0 +1,192 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This thread plays back the commands recorded by a CommandRecorder, with the
+ * same timing or faster or slower. The file is mapped in memory and read as it
+ * goes, a long recording is never loaded as a whole.
+ * <p>
+ * Each command is due at a time counted from the start of the playback, not
+ * from the previous command, so the delays of the thread waking up don't add
+ * up over a long recording: a command sent late is followed by a shorter wait.
+ */
+public class CommandPlayer extends Thread
+{
+	/**
+	 * Where the commands go, called from the player's thread.
+	 */
+	public interface Output
+	{
+		void write(String command);
+
+		void writeSpeed(int left, int right);
+
+		/**
+		 * The playback has ended, either at the end of the recording or
+		 * because it was canceled.
+		 * 
+		 * @param player
+		 *            The player that has ended
+		 */
+		void onFinished(CommandPlayer player);
+	}
+
+	private final MappedByteBuffer buffer;
+	private final float speed;
+	private final Output output;
+	private volatile boolean running = true;
+
+	/**
+	 * Constructor. Opens the recording, the playback starts with start().
+	 * 
+	 * @param file
+	 *            Recording made by a CommandRecorder
+	 * @param playbackSpeed
+	 *            1 to play with the recorded timing, 2 to play twice as fast
+	 * @param playerOutput
+	 *            Receives the commands
+	 * @throws IOException
+	 *             When the file can't be read or is not a recording
+	 */
+	public CommandPlayer(File file, float playbackSpeed, Output playerOutput) throws IOException
+	{
+		super("Player");
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = input.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			// The mapping stays valid once the file is closed
+			input.close();
+		}
+
+		for(int i = 0; i < CommandRecorder.MAGIC.length; i++)
+		{
+			if(!buffer.hasRemaining() || buffer.get() != CommandRecorder.MAGIC[i])
+			{
+				throw new IOException("Not a recording");
+			}
+		}
+		speed = playbackSpeed;
+		output = playerOutput;
+	}
+
+	public void run()
+	{
+		long start = System.nanoTime();
+		// Time of the current command in the recording
+		long time = 0;
+		try
+		{
+			while(running && buffer.hasRemaining())
+			{
+				time += readVarint();
+				int type = buffer.get();
+				int left = 0, right = 0;
+				String command = null;
+				if(type == CommandRecorder.TYPE_SPEED)
+				{
+					left = unzigzag(readVarint());
+					right = unzigzag(readVarint());
+				}
+				else if(type == CommandRecorder.TYPE_TEXT)
+				{
+					byte[] text = new byte[(int) readVarint()];
+					buffer.get(text);
+					command = new String(text, "UTF-8");
+				}
+				else
+				{
+					// Unknown type, the rest can't be read
+					break;
+				}
+
+				// Wait until the command is due, it might already be
+				long due = start + (long) (time / speed);
+				long wait;
+				while(running && (wait = due - System.nanoTime()) > 0)
+				{
+					LockSupport.parkNanos(this, wait);
+				}
+				if(!running)
+				{
+					break;
+				}
+
+				if(command == null)
+				{
+					output.writeSpeed(left, right);
+				}
+				else
+				{
+					output.write(command);
+				}
+			}
+		}
+		catch(BufferUnderflowException e)
+		{
+			// The recording was cut short, what was read has been played
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			e.printStackTrace();
+		}
+		output.onFinished(this);
+	}
+
+	private long readVarint()
+	{
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do
+		{
+			b = buffer.get();
+			value |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		}
+		while((b & 0x80) != 0);
+		return value;
+	}
+
+	private static int unzigzag(long value)
+	{
+		int bits = (int) value;
+		return (bits >>> 1) ^ -(bits & 1);
+	}
+
+	/**
+	 * Stops the playback, the output is told when it's done.
+	 */
+	public void cancel()
+	{
+		running = false;
+		LockSupport.unpark(this);
+	}
+}
@@ -0,0 +1,608 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class holds the commands waiting to be sent to the device by the writer
+ * thread and the ones that have been sent but not answered yet. Anyone can add
+ * commands without waiting, only the writer thread blocks until there's
+ * something to send.
+ * <p>
+ * Speed commands (s,left,right) are only worth something until the next one is
+ * given, so only the newest one is kept: a new speed replaces the one still
+ * waiting instead of queuing behind it. The speeds are kept as numbers, the
+ * writer thread encodes them itself so giving a new speed allocates nothing.
+ * <p>
+ * The device replies to each command. Up to window commands can be sent before
+ * the first one is answered, the reset command (r) can always be sent even if
+ * the window is full. With the legacy protocol the window is 1 and the replies
+ * come in order. Once the device accepted sequence numbers each command gets
+ * one, the device repeats it in its reply so replies can be matched in any
+ * order, and a command that is not answered in time is sent again with the
+ * same number. The time to wait comes from the measured round trip times. An
+ * unanswered speed command is not sent again when a newer speed has been
+ * given since, that one will be sent instead.
+ * <p>
+ * A speed equal to the last one given is dropped, so is a speed within the
+ * deadband of it (a stop always goes through). So the device does not stop
+ * for lack of commands, the current speed can be sent again at a regular
+ * interval while nothing else is sent.
+ */
+public class CommandQueue
+{
+	// The filler is a single 0 byte, the device replies with "0"
+	public static final String FILLER = "\0";
+	// Place holder for the speed command in the queue, the speeds are stored apart
+	public static final String SPEED = new String("s");
+	// Place holder for a probe: the current speed sent again, so the device answers it like a real speed command
+	public static final String PROBE = new String("p");
+
+	// Largest window a device can ask for
+	public static final int MAX_WINDOW = 8;
+	// Number of times a command is sent again before giving up on it
+	private static final int MAX_RETRIES = 3;
+
+	/**
+	 * A command the writer thread has to send, filled by take().
+	 */
+	public static class Outgoing
+	{
+		public String command;
+		// Only set for the SPEED command
+		public int left, right;
+		// Sequence number, only sent when the device accepted them
+		public int sequence;
+		// True if the command has already been sent once
+		public boolean retransmission;
+	}
+
+	private final LatencyStats stats;
+	private final RttEstimator rtt;
+
+	// Commands not sent yet
+	private final String[] commands;
+	private int head, count;
+	private int speedLeft, speedRight;
+	private boolean speedGiven;
+	// Speed the device has or will have once the queue is sent, known after the first speed or a reset, until one is lost
+	private int setLeft, setRight;
+	private boolean setKnown;
+	private int deadband;
+	private long refreshInterval, lastSpeedSent;
+
+	// Commands sent and not answered yet, in the order they were first sent, one extra slot for the reset command
+	private final String[] sentCommands = new String[MAX_WINDOW + 1];
+	private final int[] sentLeft = new int[MAX_WINDOW + 1];
+	private final int[] sentRight = new int[MAX_WINDOW + 1];
+	private final int[] sentSequences = new int[MAX_WINDOW + 1];
+	private final int[] retries = new int[MAX_WINDOW + 1];
+	private final long[] sentTimes = new long[MAX_WINDOW + 1];
+	private final boolean[] answered = new boolean[MAX_WINDOW + 1];
+	private int sentHead, inFlight;
+
+	private int window = 1;
+	private boolean sequenced;
+	private int nextSequence;
+	private boolean closed;
+	// Speed commands given as text are parsed in here
+	private final int[] parsed = new int[2];
+
+	/**
+	 * Constructor. Prepares an empty queue.
+	 * 
+	 * @param capacity
+	 *            Maximum number of commands waiting to be sent
+	 * @param latencyStats
+	 *            Where the round trip times of the answered commands are counted
+	 * @param rttEstimator
+	 *            Gives the time to wait for an answer before sending a command
+	 *            again, it's fed with the round trip times as well
+	 */
+	public CommandQueue(int capacity, LatencyStats latencyStats, RttEstimator rttEstimator)
+	{
+		commands = new String[capacity];
+		stats = latencyStats;
+		rtt = rttEstimator;
+	}
+
+	/**
+	 * Sets how many commands can be waiting for an answer, called once the
+	 * device said what it can take.
+	 * 
+	 * @param size
+	 *            Number of commands, limited to MAX_WINDOW
+	 * @param useSequences
+	 *            True if the device accepts sequence numbers and repeats them
+	 *            in its replies
+	 */
+	public synchronized void setWindow(int size, boolean useSequences)
+	{
+		window = Math.max(1, Math.min(MAX_WINDOW, size));
+		sequenced = useSequences;
+		notifyAll();
+	}
+
+	public synchronized boolean isSequenced()
+	{
+		return sequenced;
+	}
+
+	/**
+	 * @param speedDeadband
+	 *            Largest change of either wheel speed that is not sent, 0 to
+	 *            only drop the speeds that did not change
+	 */
+	public synchronized void setDeadband(int speedDeadband)
+	{
+		deadband = Math.max(0, speedDeadband);
+	}
+
+	/**
+	 * Sets how often the current speed is sent again when no speed has been
+	 * sent in the mean time.
+	 * 
+	 * @param millis
+	 *            Interval, 0 to never send it again
+	 */
+	public synchronized void setRefreshInterval(int millis)
+	{
+		refreshInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+		notifyAll();
+	}
+
+	/**
+	 * Adds a command at the end of the queue, a speed command replaces any
+	 * speed command that hasn't been sent yet.
+	 * 
+	 * @param command
+	 *            Command to send, without the ending new line
+	 * @return False if the queue is full or closed, the command is dropped
+	 */
+	public synchronized boolean offer(String command)
+	{
+		if(Protocol.parseSpeed(command, parsed))
+		{
+			return offerSpeed(parsed[0], parsed[1]);
+		}
+		if(!add(command))
+		{
+			return false;
+		}
+		if(command.equals("r"))
+		{
+			// The device stops when it's reset
+			setLeft = setRight = 0;
+			setKnown = true;
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the wheel speeds to send, replacing any speed that hasn't been sent
+	 * yet.
+	 * 
+	 * @param left
+	 *            Left wheel speed
+	 * @param right
+	 *            Right wheel speed
+	 * @return False if the queue is full or closed, the speed is dropped. True
+	 *         if the speed is the current one, there's nothing to send
+	 */
+	public synchronized boolean offerSpeed(int left, int right)
+	{
+		if(closed)
+		{
+			return false;
+		}
+		if(isUnchanged(left, right))
+		{
+			return true;
+		}
+		if(!putSpeed(left, right))
+		{
+			return false;
+		}
+		setLeft = left;
+		setRight = right;
+		setKnown = true;
+		return true;
+	}
+
+	/**
+	 * @return True if the speed is the current one or close enough to it
+	 */
+	private boolean isUnchanged(int left, int right)
+	{
+		if(!setKnown)
+		{
+			return false;
+		}
+		if(left == setLeft && right == setRight)
+		{
+			return true;
+		}
+		// A stop always goes through, whatever the deadband
+		if(left == 0 && right == 0)
+		{
+			return false;
+		}
+		return Math.abs(left - setLeft) <= deadband && Math.abs(right - setRight) <= deadband;
+	}
+
+	/**
+	 * Queues a speed without comparing it to the current one.
+	 */
+	private boolean putSpeed(int left, int right)
+	{
+		// Remove the previous speed, the new one goes at the end to keep the order with other commands
+		for(int i = 0; i < count; i++)
+		{
+			if(commands[(head + i) % commands.length] == SPEED)
+			{
+				for(int j = i; j < count - 1; j++)
+				{
+					commands[(head + j) % commands.length] = commands[(head + j + 1) % commands.length];
+				}
+				count--;
+				break;
+			}
+		}
+
+		speedLeft = left;
+		speedRight = right;
+		speedGiven = true;
+		return add(SPEED);
+	}
+
+	private boolean add(String command)
+	{
+		if(closed || count == commands.length)
+		{
+			return false;
+		}
+
+		commands[(head + count++) % commands.length] = command;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Adds the filler if the link is idle: nothing is waiting to be sent and
+	 * the device has replied to all the commands.
+	 */
+	public synchronized void offerFiller()
+	{
+		if(count == 0 && inFlight == 0)
+		{
+			add(FILLER);
+		}
+	}
+
+	/**
+	 * Adds several probes whatever is waiting, used to measure how many speed
+	 * commands per second the link carries. Each one sends the speed the
+	 * device has or will have, a stop if no speed was given yet, so the device
+	 * does not change speed. The probes are never sent again.
+	 * 
+	 * @return Number of probes added, less than asked when the queue is full
+	 */
+	public synchronized int offerProbes(int probes)
+	{
+		int added = 0;
+		while(added < probes && add(PROBE))
+		{
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * Waits for the next command that can be sent: a command that has not been
+	 * answered in time or, when the window allows it, the next command of the
+	 * queue.
+	 * 
+	 * @param out
+	 *            Filled with the command to send
+	 * @throws InterruptedException
+	 *             When the queue is closed
+	 */
+	public synchronized void take(Outgoing out) throws InterruptedException
+	{
+		while(true)
+		{
+			// Also checked here as the wait is skipped when a command is ready
+			if(closed || Thread.interrupted())
+			{
+				throw new InterruptedException("Queue closed");
+			}
+
+			// Answers are awaited for the oldest command first
+			long now = System.nanoTime();
+			long wait = 0;
+			if(sequenced && inFlight > 0)
+			{
+				wait = TimeUnit.MICROSECONDS.toNanos(rtt.getTimeout()) - (now - sentTimes[sentHead]);
+				if(wait <= 0)
+				{
+					if(retransmit(out))
+					{
+						return;
+					}
+					// The oldest command was dropped, look again
+					continue;
+				}
+			}
+
+			// Nothing to send, time to remind the device of its speed
+			if(refreshInterval > 0 && speedGiven && count == 0)
+			{
+				long refresh = refreshInterval - (now - lastSpeedSent);
+				if(refresh <= 0)
+				{
+					putSpeed(setLeft, setRight);
+				}
+				else if(wait <= 0 || refresh < wait)
+				{
+					wait = refresh;
+				}
+			}
+
+			if(count > 0 && (inFlight < window || (commands[head].equals("r") && inFlight < sentCommands.length)))
+			{
+				send(out);
+				return;
+			}
+
+			if(wait > 0)
+			{
+				TimeUnit.NANOSECONDS.timedWait(this, wait);
+			}
+			else
+			{
+				wait();
+			}
+		}
+	}
+
+	/**
+	 * Moves the first command of the queue to the commands waiting for an
+	 * answer.
+	 */
+	private void send(Outgoing out)
+	{
+		String command = commands[head];
+		commands[head] = null;
+		head = (head + 1) % commands.length;
+		count--;
+
+		int index = (sentHead + inFlight++) % sentCommands.length;
+		sentCommands[index] = command;
+		sentSequences[index] = nextSequence;
+		nextSequence = (nextSequence + 1) & 0xff;
+		if(command == PROBE)
+		{
+			if(!setKnown)
+			{
+				setLeft = setRight = 0;
+				setKnown = true;
+			}
+			sentLeft[index] = setLeft;
+			sentRight[index] = setRight;
+		}
+		else
+		{
+			sentLeft[index] = speedLeft;
+			sentRight[index] = speedRight;
+		}
+		retries[index] = 0;
+		answered[index] = false;
+		sentTimes[index] = System.nanoTime();
+		if(command == SPEED || command == PROBE)
+		{
+			lastSpeedSent = sentTimes[index];
+		}
+		fill(out, index, false);
+	}
+
+	/**
+	 * Sends the oldest command again, unless it should be given up on.
+	 * 
+	 * @return False if the command was dropped instead
+	 */
+	private boolean retransmit(Outgoing out)
+	{
+		String command = sentCommands[sentHead];
+		if(retries[sentHead] == MAX_RETRIES || command == PROBE || (command == SPEED && hasNewerSpeed()))
+		{
+			if((command == SPEED || command == PROBE || command.equals("r")) && !hasNewerSpeed())
+			{
+				// The device may not have this speed, the next one given must be sent even if it's the same
+				setKnown = false;
+			}
+			stats.lost();
+			answered[sentHead] = true;
+			slide();
+			return false;
+		}
+
+		retries[sentHead]++;
+		stats.retransmitted();
+		rtt.backOff();
+		// Waiting again from now, the commands behind it are late only because of this one
+		sentTimes[sentHead] = System.nanoTime();
+		fill(out, sentHead, true);
+		return true;
+	}
+
+	/**
+	 * @return True if a speed more recent than the oldest sent command is
+	 *         either waiting to be sent or has been sent
+	 */
+	private boolean hasNewerSpeed()
+	{
+		for(int i = 1; i < inFlight; i++)
+		{
+			int index = (sentHead + i) % sentCommands.length;
+			if(sentCommands[index] == SPEED && !answered[index])
+			{
+				return true;
+			}
+		}
+		for(int i = 0; i < count; i++)
+		{
+			if(commands[(head + i) % commands.length] == SPEED)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void fill(Outgoing out, int index, boolean retransmission)
+	{
+		out.command = sentCommands[index];
+		out.left = sentLeft[index];
+		out.right = sentRight[index];
+		out.sequence = sentSequences[index];
+		out.retransmission = retransmission;
+	}
+
+	/**
+	 * Tells the queue the device has replied to the oldest command, used with
+	 * the legacy protocol where replies come in order.
+	 * 
+	 * @return The command answered, null if none was waiting for a reply: the
+	 *         line is not a reply, the caller counts it if it's not a sample
+	 */
+	public synchronized String acknowledge()
+	{
+		if(inFlight == 0)
+		{
+			return null;
+		}
+		return answer(sentHead);
+	}
+
+	/**
+	 * Tells the queue the device has replied to the command with the given
+	 * sequence number, replies to unknown or already answered commands are
+	 * only counted.
+	 * 
+	 * @param sequence
+	 *            Sequence number repeated by the device
+	 * @return The command answered, null if the reply matched none
+	 */
+	public synchronized String acknowledge(int sequence)
+	{
+		for(int i = 0; i < inFlight; i++)
+		{
+			int index = (sentHead + i) % sentCommands.length;
+			if(sentSequences[index] == sequence && !answered[index])
+			{
+				return answer(index);
+			}
+		}
+		stats.unmatched();
+		return null;
+	}
+
+	private String answer(int index)
+	{
+		String command = sentCommands[index];
+		answered[index] = true;
+		// The round trip of a command sent several times cannot be known
+		if(retries[index] == 0)
+		{
+			long micros = (System.nanoTime() - sentTimes[index]) / 1000;
+			stats.record(LatencyStats.typeOf(sentCommands[index]), micros);
+			rtt.sample(micros);
+		}
+		slide();
+		notifyAll();
+		return command;
+	}
+
+	/**
+	 * Forgets the answered commands at the start of the window.
+	 */
+	private void slide()
+	{
+		while(inFlight > 0 && answered[sentHead])
+		{
+			sentCommands[sentHead] = null;
+			sentHead = (sentHead + 1) % sentCommands.length;
+			inFlight--;
+		}
+	}
+
+	/**
+	 * Prepares the queue for a new link to the device, once it's open. The
+	 * commands that have not been answered are given up on as it's unknown if
+	 * the device got them and the handshake is put first to choose the protocol
+	 * again. The speed is not sent again, it might be long out of date after
+	 * the link was lost: the device is told to stop instead and the controller
+	 * gives a new speed.
+	 */
+	public synchronized void restart()
+	{
+		while(inFlight > 0)
+		{
+			if(!answered[sentHead])
+			{
+				stats.lost();
+				answered[sentHead] = true;
+			}
+			slide();
+		}
+		window = 1;
+		sequenced = false;
+
+		// The handshake goes in front of everything, a command is dropped if the queue is full
+		if(count == commands.length)
+		{
+			commands[(head + --count) % commands.length] = null;
+		}
+		head = (head + commands.length - 1) % commands.length;
+		commands[head] = Protocol.HANDSHAKE;
+		count++;
+
+		if(speedGiven)
+		{
+			// Replaces a speed given before the link was back
+			putSpeed(0, 0);
+			setLeft = 0;
+			setRight = 0;
+			setKnown = true;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Drops all the commands and wakes up the writer thread, nothing can be
+	 * added afterwards.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		Arrays.fill(commands, null);
+		Arrays.fill(sentCommands, null);
+		count = inFlight = 0;
+		notifyAll();
+	}
+}
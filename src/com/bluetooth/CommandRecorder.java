@@ -0,0 +1,197 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * This class records the commands given to the robots in a file so they can be
+ * played back later by a CommandPlayer. The file is only ever appended to, each
+ * command takes a few bytes:
+ * <ul>
+ * <li>the time since the previous command in nanoseconds, as a varint</li>
+ * <li>the type, a speed or a text command</li>
+ * <li>for a speed both wheel speeds as zigzag varints, for a text command its
+ * length as a varint followed by its UTF-8 bytes</li>
+ * </ul>
+ * A varint takes 7 bits per byte, the highest bit telling if another byte
+ * follows. The file starts with the MAGIC bytes.
+ * <p>
+ * Recording a speed allocates nothing, the commands are written through a
+ * buffer so the disk is only touched every few kilobytes.
+ */
+public class CommandRecorder
+{
+	public static final byte[] MAGIC = { 'B', 'B', 'R', '1' };
+	public static final int TYPE_SPEED = 1;
+	public static final int TYPE_TEXT = 2;
+
+	private final OutputStream outStream;
+	// A record is put together in here before being written, a varint takes up to 10 bytes
+	private final byte[] record = new byte[32];
+	private final long start;
+	private long last;
+	private int count;
+	private boolean closed;
+
+	/**
+	 * Constructor. Starts a new recording, the file is replaced.
+	 * 
+	 * @param file
+	 *            File to record to
+	 * @throws IOException
+	 *             When the file can't be written
+	 */
+	public CommandRecorder(File file) throws IOException
+	{
+		outStream = new BufferedOutputStream(new FileOutputStream(file), 8192);
+		outStream.write(MAGIC);
+		start = last = System.nanoTime();
+	}
+
+	/**
+	 * Records new wheel speeds.
+	 */
+	public synchronized void recordSpeed(int left, int right)
+	{
+		int length = writeTime(TYPE_SPEED);
+		length = writeVarint(record, length, zigzag(left));
+		length = writeVarint(record, length, zigzag(right));
+		write(record, length, null);
+	}
+
+	/**
+	 * Records a text command.
+	 */
+	public synchronized void record(String command)
+	{
+		try
+		{
+			byte[] text = command.getBytes("UTF-8");
+			int length = writeTime(TYPE_TEXT);
+			length = writeVarint(record, length, text.length);
+			write(record, length, text);
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Starts a record with the time since the previous one and the type.
+	 * 
+	 * @return Length of the record so far
+	 */
+	private int writeTime(int type)
+	{
+		long now = System.nanoTime();
+		int length = writeVarint(record, 0, now - last);
+		last = now;
+		record[length++] = (byte) type;
+		return length;
+	}
+
+	private void write(byte[] buffer, int length, byte[] text)
+	{
+		if(closed)
+		{
+			return;
+		}
+		try
+		{
+			outStream.write(buffer, 0, length);
+			if(text != null)
+			{
+				outStream.write(text);
+			}
+			count++;
+		}
+		catch(IOException e)
+		{
+			// The disk is full or gone, keep what has been recorded so far
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Ends the recording and writes what's left in the buffer.
+	 */
+	public synchronized void close()
+	{
+		if(closed)
+		{
+			return;
+		}
+		closed = true;
+		try
+		{
+			outStream.close();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return Number of commands recorded
+	 */
+	public synchronized int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @return Time from the start of the recording to the last command in
+	 *         nanoseconds
+	 */
+	public synchronized long getDuration()
+	{
+		return last - start;
+	}
+
+	/**
+	 * Writes a number 7 bits at a time, the small numbers take less bytes.
+	 * 
+	 * @return Position after the number
+	 */
+	static int writeVarint(byte[] buffer, int offset, long value)
+	{
+		while((value & ~0x7fL) != 0)
+		{
+			buffer[offset++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * Maps the small negative numbers to small positive ones so they make
+	 * short varints: 0, -1, 1, -2... become 0, 1, 2, 3...
+	 */
+	static long zigzag(int value)
+	{
+		return ((value << 1) ^ (value >> 31)) & 0xffffffffL;
+	}
+}
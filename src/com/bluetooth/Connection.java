@@ -0,0 +1,922 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * This class manages a connection with a device over any transport. It has a
+ * thread for connecting with the device and receiving data when connected, a
+ * thread that sends the queued commands and a watchdog thread that ends the
+ * connection when too much time has passed since last communication.
+ * <p>
+ * It does not depend on Android (logging is only compiled in debug builds), the
+ * events are given to a listener so the same code can run on a plain JVM
+ * against a simulated device.
+ */
+public class Connection
+{
+	private final static String TAG = "Connection";
+
+	/**
+	 * Receives the connection events, the methods are called from the
+	 * connection threads.
+	 */
+	public interface Listener
+	{
+		void onConnected(Connection connection);
+
+		void onRead(Connection connection, String line);
+
+		/**
+		 * A command has been sent, only called when setEchoWrites() is on.
+		 */
+		void onWrite(Connection connection, String command);
+
+		/**
+		 * The link has been lost, a new attempt to open it is about to be
+		 * made. Commands are still accepted in the mean time.
+		 * 
+		 * @param attempt
+		 *            Number of the attempt, starting from 1
+		 */
+		void onReconnecting(Connection connection, int attempt);
+
+		/**
+		 * The link is back after being lost.
+		 */
+		void onReconnected(Connection connection);
+
+		/**
+		 * The connection has ended, either by request or because it failed.
+		 * Called once and never after cancel().
+		 */
+		void onDisconnected(Connection connection, String reason);
+	}
+
+	// Time between sending the idle filler to confirm communication, must be smaller than the timeout constant.
+	private final int minCommInterval = 900;
+	// Time without receiving anything after which the communication is deemed dead
+	private final int timeout = 3000;
+	// Shortest time a reply is waited for before the communication is deemed dead, the actual time comes from the round trip times
+	private final int minTimeout = 300;
+	// The link is deemed dead after this many retransmission timeouts without a reply
+	private static final int DEAD_LINK_TIMEOUTS = 3;
+	// Speed commands sent at once after connecting to measure how many of them per second the link carries
+	private static final int PROBE_COMMANDS = 12;
+	// Part of the measured rate the commands are then limited to, the rest is left for the retransmissions and the replies
+	private static final float PROBE_HEADROOM = 0.8f;
+	// The probe is given up on after this time, the rate is then not limited
+	private static final long PROBE_TIMEOUT = TimeUnit.SECONDS.toNanos(2);
+
+	// Constants that indicate the current connection state
+	private static final int STATE_NONE = 0;
+	private static final int STATE_CONNECTING = 1;
+	private static final int STATE_CONNECTED = 2;
+	private static final int STATE_RECONNECTING = 3;
+
+	private final Transport transport;
+	private final Listener listener;
+	private final CommandQueue queue;
+	private final Watchdog watchdog;
+	// Delays between the attempts to get a lost link back, about 20 seconds in all
+	private final Backoff backoff = new Backoff(250, 4000, 8);
+	private final LatencyStats stats;
+	private final RttEstimator rtt;
+	private final TokenBucket limiter = new TokenBucket();
+	private ReaderThread readerThread;
+	private WriterThread writerThread;
+	private volatile int state;
+	private volatile boolean stoppingConnection;
+	// Binary speed frames are used once the device said it understands them
+	private volatile boolean binary;
+	// Sent commands are only turned into text for the listener when asked
+	private volatile boolean echoWrites;
+	// Numeric lines are read into a buffer when set
+	private volatile TelemetryDecoder telemetry;
+	// All the frames are saved when set, each opening of the link is a new session
+	private volatile TrafficCapture capture;
+	private volatile int session;
+
+	/**
+	 * Constructor. Prepares a connection, nothing happens until connect() is
+	 * called.
+	 * 
+	 * @param linkTransport
+	 *            Link to the device
+	 * @param connectionListener
+	 *            Receives the connection events
+	 */
+	public Connection(Transport linkTransport, Listener connectionListener)
+	{
+		transport = linkTransport;
+		listener = connectionListener;
+		state = STATE_NONE;
+
+		// Commands are only accepted once connected, the handshake goes first to choose the protocol
+		stats = new LatencyStats();
+		rtt = new RttEstimator(timeout / DEAD_LINK_TIMEOUTS, minTimeout / DEAD_LINK_TIMEOUTS, timeout / DEAD_LINK_TIMEOUTS);
+		queue = new CommandQueue(16, stats, rtt);
+		queue.offer(Protocol.HANDSHAKE);
+
+		// The watchdog also limits the time it takes to connect
+		watchdog = new Watchdog(minCommInterval, timeout, new Watchdog.Listener()
+		{
+			public void onIdle()
+			{
+				// Filler to confirm communication with device when idle
+				if(state == STATE_CONNECTED)
+				{
+					queue.offerFiller();
+				}
+			}
+
+			public void onTimeout()
+			{
+				if(BluetoothRemoteControlApp.D)
+					Log.e(TAG, "Timeout");
+				if(state == STATE_CONNECTING)
+				{
+					// Never got connected
+					disconnect();
+				}
+				else
+				{
+					// Unblocks the reading thread which tries to reconnect, or gives up on a reconnection attempt that hangs
+					closeTransport();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Set the current state of the connection
+	 * 
+	 * @param newState
+	 *            An integer defining the new connection state
+	 */
+	private synchronized void setState(int newState)
+	{
+		if(BluetoothRemoteControlApp.D)
+			Log.i(TAG, "Connection status: " + state + " -> " + newState);
+		state = newState;
+	}
+
+	/**
+	 * Starts the thread that opens the transport and the watchdog that checks
+	 * the connecting status.
+	 */
+	public synchronized void connect()
+	{
+		if(BluetoothRemoteControlApp.D)
+			Log.i(TAG, "Connecting to " + transport.getName());
+		setState(STATE_CONNECTING);
+
+		readerThread = new ReaderThread();
+		readerThread.start();
+		watchdog.start();
+	}
+
+	/**
+	 * @return True when connected and ready to take commands
+	 */
+	public boolean isConnected()
+	{
+		return state == STATE_CONNECTED;
+	}
+
+	public Transport getTransport()
+	{
+		return transport;
+	}
+
+	/**
+	 * @return Round trip times of the commands sent during this connection
+	 */
+	public LatencyStats getStats()
+	{
+		return stats;
+	}
+
+	/**
+	 * @return Commands per second the link is limited to, measured after
+	 *         connecting, 0 while there's no limit
+	 */
+	public float getSendRate()
+	{
+		return limiter.getRate();
+	}
+
+	/**
+	 * Sets the bounds of the time a reply is waited for before the link is
+	 * deemed dead. The time itself follows the measured round trip times, the
+	 * commands are sent again after a third of it.
+	 * 
+	 * @param minMillis
+	 *            Shortest time, a fast link is deemed dead after it
+	 * @param maxMillis
+	 *            Longest time, no more than the 3 seconds without receiving
+	 *            anything that always end the communication
+	 */
+	public void setTimeoutBounds(int minMillis, int maxMillis)
+	{
+		rtt.setBounds(minMillis / DEAD_LINK_TIMEOUTS, maxMillis / DEAD_LINK_TIMEOUTS);
+		updateReplyTimeout();
+	}
+
+	private void updateReplyTimeout()
+	{
+		watchdog.setReplyTimeout(DEAD_LINK_TIMEOUTS * rtt.getTimeout() / 1000);
+	}
+
+	/**
+	 * Sets how much a wheel speed has to change to be sent, speeds equal to
+	 * the current one are never sent.
+	 * 
+	 * @param deadband
+	 *            Largest change of either wheel that is not sent, 0 by default
+	 */
+	public void setDeadband(int deadband)
+	{
+		queue.setDeadband(deadband);
+	}
+
+	/**
+	 * Sets how often the current speed is sent again while no new speed is
+	 * given, so the device knows the speed is still wanted.
+	 * 
+	 * @param millis
+	 *            Interval, 0 (the default) to only rely on the keep-alive
+	 *            filler
+	 */
+	public void setSpeedRefresh(int millis)
+	{
+		queue.setRefreshInterval(millis);
+	}
+
+	/**
+	 * Sets if the listener is told about the sent commands. Speed commands are
+	 * not kept as text, showing them costs a String each.
+	 */
+	public void setEchoWrites(boolean echo)
+	{
+		echoWrites = echo;
+	}
+
+	/**
+	 * Sets the decoder the numeric lines (samples streamed by the device) are
+	 * given to, they are then not handed to the listener. The replies to the
+	 * handshake and to the filler are never given to it.
+	 * <p>
+	 * The device ends a stream when it receives anything, the filler included,
+	 * and stops on its own after a second without receiving anything. The
+	 * command that starts the stream has to be sent again more often than
+	 * that, which also keeps the link from going idle.
+	 * 
+	 * @param decoder
+	 *            Decoder to use, null to hand all the lines to the listener
+	 */
+	public void setTelemetryDecoder(TelemetryDecoder decoder)
+	{
+		telemetry = decoder;
+	}
+
+	/**
+	 * Sets the capture the frames sent and received are saved to. The capture
+	 * only copies them, the reading and the writing never wait for the disk.
+	 * 
+	 * @param trafficCapture
+	 *            Capture to use, null to stop saving the frames
+	 */
+	public void setCapture(TrafficCapture trafficCapture)
+	{
+		if(trafficCapture != null && state != STATE_NONE)
+		{
+			// Already connected, the session is started now instead of when opening
+			session = trafficCapture.newSession(transport.getName());
+		}
+		capture = trafficCapture;
+	}
+
+	/**
+	 * This thread runs during a connection with a remote device. It handles the
+	 * initial connection, all incoming transmissions and the reconnection when
+	 * the link is lost.
+	 */
+	private class ReaderThread extends Thread implements FrameReader.FrameListener
+	{
+		private boolean negotiating;
+		// Replies still expected by the probe, 0 when it's not running
+		private int probeReplies;
+		private long probeStart;
+		private int probeWindow;
+		private InputStream inStream;
+		private OutputStream outStream;
+
+		public ReaderThread()
+		{
+			super("Connection reader");
+		}
+
+		public void run()
+		{
+			// Connect to the device
+			if(!open())
+			{
+				// If the user didn't cancel the connection then it has failed (timeout)
+				if(!stoppingConnection)
+				{
+					disconnect();
+				}
+				return;
+			}
+
+			// Connected
+			setState(STATE_CONNECTED);
+			// All the writing is done by its own thread from now on
+			startWriter(outStream);
+			// Inform of success
+			listener.onConnected(Connection.this);
+
+			// Frames are cut out of the stream in bulk, no matter how the data arrives
+			FrameReader frameReader = new FrameReader(1024, this);
+
+			// Keep listening to the InputStream while connected
+			while(true)
+			{
+				try
+				{
+					if(frameReader.read(inStream) < 0)
+					{
+						throw new IOException("End of stream");
+					}
+				}
+				catch(IOException e)
+				{
+					// read() will inevitably throw an error, even when just disconnecting
+					if(stoppingConnection)
+					{
+						break;
+					}
+					if(BluetoothRemoteControlApp.D)
+						Log.e(TAG, "Failed to read");
+					e.printStackTrace();
+
+					if(!reconnect())
+					{
+						if(!stoppingConnection)
+						{
+							disconnect();
+						}
+						break;
+					}
+					// Anything left from the old link is garbage
+					frameReader.clear();
+				}
+			}
+		}
+
+		/**
+		 * Opens the transport and gets its streams.
+		 * 
+		 * @return False if it failed or the connection was canceled in the
+		 *         mean time
+		 */
+		private boolean open()
+		{
+			try
+			{
+				// Blocking function, needs the timeout
+				if(BluetoothRemoteControlApp.D)
+					Log.i(TAG, "Connecting to transport");
+				transport.connect();
+				inStream = transport.getInputStream();
+				outStream = transport.getOutputStream();
+			}
+			catch(IOException e)
+			{
+				if(!stoppingConnection)
+				{
+					if(BluetoothRemoteControlApp.D)
+						Log.e(TAG, "Cound not connect to transport");
+					e.printStackTrace();
+				}
+				closeTransport();
+				return false;
+			}
+
+			// The connection was canceled while the transport was opening
+			if(stoppingConnection)
+			{
+				closeTransport();
+				return false;
+			}
+
+			// The device might have been changed, the protocol is chosen again
+			negotiating = true;
+			binary = false;
+			// The new link might be slower
+			rtt.reset();
+			updateReplyTimeout();
+			limiter.setRate(0, 1);
+			probeReplies = 0;
+			TrafficCapture current = capture;
+			if(current != null)
+			{
+				session = current.newSession(transport.getName());
+			}
+			watchdog.touch();
+			return true;
+		}
+
+		/**
+		 * Gets the link back after it's been lost, waiting longer and longer
+		 * between the attempts. The command queue is kept, the activities can
+		 * keep on giving commands. Once reconnected the device is told to stop
+		 * rather than given a speed that might be long out of date, the
+		 * controller gives a new one.
+		 * 
+		 * @return False if it gave up or the connection was canceled
+		 */
+		private boolean reconnect()
+		{
+			setState(STATE_RECONNECTING);
+			// Unblocks a write in progress so the writer can end
+			closeTransport();
+			stopWriter();
+
+			backoff.reset();
+			while(true)
+			{
+				long delay = backoff.next();
+				if(delay < 0 || !pause(delay))
+				{
+					return false;
+				}
+				listener.onReconnecting(Connection.this, backoff.getAttempts());
+
+				if(open())
+				{
+					// The old writer is gone, the new one starts with the handshake
+					queue.restart();
+					setState(STATE_CONNECTED);
+					startWriter(outStream);
+					listener.onReconnected(Connection.this);
+					return true;
+				}
+				if(stoppingConnection)
+				{
+					return false;
+				}
+			}
+		}
+
+		/**
+		 * Sends a burst of speed commands, the time it takes to get all the
+		 * replies gives the rate the link can take. They have the size of the
+		 * commands the rate is limited for, both ways, the filler and its
+		 * reply are much shorter and would give a rate that's too high.
+		 */
+		private void startProbe(int window)
+		{
+			probeReplies = queue.offerProbes(PROBE_COMMANDS);
+			probeStart = System.nanoTime();
+			// Saved for the end of the probe, the burst the limiter allows is the window
+			probeWindow = window;
+		}
+
+		/**
+		 * Counts a reply of the probe, any reply counts as they all share the
+		 * link.
+		 */
+		private void probeReply()
+		{
+			long elapsed = System.nanoTime() - probeStart;
+			if(elapsed > PROBE_TIMEOUT)
+			{
+				// The link is too slow or a reply was lost, don't limit anything
+				probeReplies = 0;
+				return;
+			}
+			if(--probeReplies == 0)
+			{
+				float rate = PROBE_COMMANDS * 1e9f / elapsed;
+				limiter.setRate(rate * PROBE_HEADROOM, probeWindow);
+				if(BluetoothRemoteControlApp.D)
+					Log.i(TAG, "Probed " + rate + " commands/s, round trip " + rtt.getSmoothed() + " us");
+			}
+		}
+
+		/**
+		 * Called by the frame reader for each line received, use \n (new line or
+		 * NL) as packet end.
+		 */
+		public void onFrame(byte[] buffer, int offset, int length)
+		{
+			// Update last communication time to prevent timeout
+			watchdog.touch();
+
+			TrafficCapture current = capture;
+			if(current != null)
+			{
+				current.add(session, TrafficCapture.IN, buffer, offset, length);
+			}
+
+			if(negotiating)
+			{
+				// The first reply is the one to the handshake, older devices just send their name
+				negotiating = false;
+				queue.acknowledge();
+				try
+				{
+					String reply = new String(buffer, offset, length, "UTF-8");
+					binary = Protocol.isBinaryCapable(reply);
+					int window = Protocol.getWindow(reply);
+					if(window > 0)
+					{
+						queue.setWindow(window, true);
+					}
+					startProbe(Math.max(1, window));
+					if(BluetoothRemoteControlApp.D)
+						Log.i(TAG, "Binary protocol: " + binary + ", window: " + window);
+				}
+				catch(UnsupportedEncodingException e)
+				{
+					e.printStackTrace();
+				}
+				return;
+			}
+
+			// The device has replied, the next command can be sent
+			String answered = null;
+			boolean unprefixed = false;
+			int prefix = Protocol.getSequencePrefixLength(buffer, offset, length);
+			if(prefix > 0)
+			{
+				answered = queue.acknowledge(Protocol.parseSequence(buffer, offset, prefix));
+				offset += prefix;
+				length -= prefix;
+			}
+			else
+			{
+				if(!queue.isSequenced())
+				{
+					// Replies come in order
+					answered = queue.acknowledge();
+				}
+				// Counted once it's known not to be a sample
+				unprefixed = answered == null;
+			}
+			// The reply gave a new round trip time
+			updateReplyTimeout();
+			if(probeReplies > 0)
+			{
+				probeReply();
+			}
+			if(answered == CommandQueue.FILLER || answered == CommandQueue.PROBE)
+			{
+				// Not for the listener, and the filler's "0" would pass for a sample
+				return;
+			}
+
+			// Samples go straight to their buffer, no String is made for them
+			TelemetryDecoder decoder = telemetry;
+			if(decoder != null && length > 0 && decoder.decode(buffer, offset, length))
+			{
+				return;
+			}
+			if(unprefixed)
+			{
+				// Said by the device on its own or the command could not be read, it will be sent again
+				stats.unmatched();
+			}
+
+			// Empty character is considered as a filler to keep the connection alive, don't forward that to the listener
+			if(length > 0 && !(length == 1 && buffer[offset] == '0'))
+			{
+				try
+				{
+					String input = new String(buffer, offset, length, "UTF-8");
+
+					if(BluetoothRemoteControlApp.D)
+						Log.v(TAG, "Read: " + input);
+
+					listener.onRead(Connection.this, input);
+				}
+				catch(UnsupportedEncodingException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	/**
+	 * Waits before the next reconnection attempt, returns right away when the
+	 * connection is stopped.
+	 * 
+	 * @return False if the connection has been stopped
+	 */
+	private synchronized boolean pause(long millis)
+	{
+		long end = System.currentTimeMillis() + millis;
+		long left = millis;
+		while(!stoppingConnection && left > 0)
+		{
+			try
+			{
+				wait(left);
+			}
+			catch(InterruptedException e)
+			{
+				return false;
+			}
+			left = end - System.currentTimeMillis();
+		}
+		return !stoppingConnection;
+	}
+
+	/**
+	 * Stops the writer thread of a lost link and waits for it to end, so it
+	 * never shares the queue with the writer of the next link. The queue is
+	 * kept.
+	 */
+	private void stopWriter()
+	{
+		WriterThread writer;
+		synchronized(this)
+		{
+			writer = writerThread;
+			writerThread = null;
+		}
+		if(writer == null)
+		{
+			return;
+		}
+		writer.interrupt();
+		try
+		{
+			writer.join();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Starts the writer thread once the connection has its streams.
+	 */
+	private synchronized void startWriter(OutputStream outStream)
+	{
+		// The connection might have been canceled in the mean time
+		if(stoppingConnection)
+		{
+			return;
+		}
+		writerThread = new WriterThread(outStream);
+		writerThread.start();
+	}
+
+	/**
+	 * This thread sends the queued commands one after the other, it's the only
+	 * one that writes to the device so that the blocking write never happens on
+	 * the thread that issued the command (UI, sensors...).
+	 */
+	private class WriterThread extends Thread
+	{
+		private final OutputStream outStream;
+		// Every frame is put together in here and sent with a single write
+		private final byte[] frame = new byte[64];
+		private final CommandQueue.Outgoing outgoing = new CommandQueue.Outgoing();
+
+		public WriterThread(OutputStream stream)
+		{
+			super("Connection writer");
+			outStream = stream;
+		}
+
+		public void run()
+		{
+			while(true)
+			{
+				try
+				{
+					// Wait for the rate limit first, the speeds given meanwhile replace each other in the queue
+					long wait = limiter.take();
+					if(wait > 0)
+					{
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+					// Wait until there's something to send and the device is ready
+					queue.take(outgoing);
+				}
+				catch(InterruptedException e)
+				{
+					// The connection has ended
+					break;
+				}
+				if(write(outgoing))
+				{
+					// A reply is awaited from now, and no filler is needed
+					watchdog.sent();
+				}
+			}
+		}
+
+		private boolean write(CommandQueue.Outgoing out)
+		{
+			String command = out.command;
+			boolean speed = command == CommandQueue.SPEED || command == CommandQueue.PROBE;
+			if(echoWrites && !out.retransmission && command != CommandQueue.FILLER && command != CommandQueue.PROBE && command != Protocol.HANDSHAKE)
+			{
+				// The filler, the probes and the handshake are not shown to the listener
+				listener.onWrite(Connection.this, speed ? "s," + out.left + "," + out.right : command);
+			}
+
+			try
+			{
+				int length;
+				if(speed && binary)
+				{
+					// The binary frame always has the sequence number
+					length = Protocol.writeSpeedFrame(frame, out.left, out.right, out.sequence);
+				}
+				else
+				{
+					if(BluetoothRemoteControlApp.D)
+						Log.v(TAG, "Write: " + command);
+
+					// The handshake is never sequenced, the device does not know yet it should answer with the number
+					length = queue.isSequenced() && command != Protocol.HANDSHAKE ? Protocol.writeSequence(frame, out.sequence) : 0;
+					if(speed)
+					{
+						length = Protocol.writeSpeedText(frame, length, out.left, out.right);
+					}
+					else
+					{
+						int end = Protocol.writeText(frame, length, command);
+						if(end < 0)
+						{
+							// Too long to fit the frame buffer, end packet with a new line
+							byte[] text = (command + "\n").getBytes();
+							outStream.write(frame, 0, length);
+							outStream.write(text);
+							TrafficCapture current = capture;
+							if(current != null)
+							{
+								// Saved as the single frame the device sees, this path is rare enough to allocate
+								byte[] whole = new byte[length + text.length];
+								System.arraycopy(frame, 0, whole, 0, length);
+								System.arraycopy(text, 0, whole, length, text.length);
+								current.add(session, TrafficCapture.OUT, whole, 0, whole.length);
+							}
+							return true;
+						}
+						length = end;
+					}
+				}
+				outStream.write(frame, 0, length);
+				TrafficCapture current = capture;
+				if(current != null)
+				{
+					current.add(session, TrafficCapture.OUT, frame, 0, length);
+				}
+				return true;
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+			return false;
+		}
+
+		public void cancel()
+		{
+			queue.close();
+			interrupt();
+		}
+	}
+
+	/**
+	 * This method queues data to be sent to the device by the writer thread, it
+	 * never waits for the device. Speed commands replace the speed command that
+	 * hasn't been sent yet and the reset command ("r") is sent even if the
+	 * device has not answered the previous commands.
+	 * 
+	 * @param out
+	 *            String to send to the device
+	 * @return Success of failure to queue the command
+	 */
+	public boolean write(String out)
+	{
+		// Make sure the connection is live, commands given while reconnecting are sent once reconnected
+		if(state != STATE_CONNECTED && state != STATE_RECONNECTING)
+		{
+			return false;
+		}
+		return queue.offer(out);
+	}
+
+	/**
+	 * Queues a speed command without building any text, this is the way to go
+	 * for controllers sending speeds at a high rate.
+	 * 
+	 * @param left
+	 *            Left wheel speed
+	 * @param right
+	 *            Right wheel speed
+	 * @return Success of failure to queue the command
+	 */
+	public boolean writeSpeed(int left, int right)
+	{
+		if(state != STATE_CONNECTED && state != STATE_RECONNECTING)
+		{
+			return false;
+		}
+		return queue.offerSpeed(left, right);
+	}
+
+	/**
+	 * Stops all threads and informs the listener, only the first call has an
+	 * effect.
+	 */
+	public void disconnect()
+	{
+		if(stop())
+		{
+			listener.onDisconnected(this, "Connection ended");
+		}
+	}
+
+	/**
+	 * Stops all threads without informing the listener, used when the
+	 * connection is replaced by another one.
+	 */
+	public void cancel()
+	{
+		stop();
+	}
+
+	/**
+	 * Stop all threads
+	 * 
+	 * @return False if the connection was already stopped
+	 */
+	private synchronized boolean stop()
+	{
+		// Do not stop twice
+		if(stoppingConnection)
+		{
+			return false;
+		}
+		stoppingConnection = true;
+		if(BluetoothRemoteControlApp.D)
+			Log.i(TAG, "Stop");
+
+		if(writerThread != null)
+		{
+			writerThread.cancel();
+			writerThread = null;
+		}
+		// The thread is not waiting for commands yet
+		queue.close();
+		watchdog.cancel();
+		// Unblocks the reading thread
+		closeTransport();
+		setState(STATE_NONE);
+		// Wakes up the reading thread waiting to reconnect
+		notifyAll();
+		return true;
+	}
+
+	private void closeTransport()
+	{
+		try
+		{
+			transport.close();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
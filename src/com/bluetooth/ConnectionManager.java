@@ -0,0 +1,391 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+/**
+ * This class keeps several connections open at once, one per robot. Each
+ * connection has its own threads, queue and watchdog so a slow or lost robot
+ * does not hold back the others.
+ * <p>
+ * Commands are addressed to a target: the id of a single robot, the name of a
+ * group of robots or ALL. A speed given to several robots is handed to each of
+ * their queues as numbers, every connection then encodes it for its own link
+ * since each robot has its own protocol and sequence numbers.
+ * <p>
+ * The list of sessions is replaced as a whole when a robot is added or
+ * removed, sending a command only reads the current list so it takes no lock
+ * and allocates nothing.
+ */
+public class ConnectionManager implements Connection.Listener
+{
+	// Target that addresses all the robots
+	public static final String ALL = "*";
+
+	/**
+	 * A robot's connection and the groups it belongs to.
+	 */
+	private static class Session
+	{
+		final String id;
+		final Connection connection;
+		final String[] groups;
+
+		Session(String sessionId, Connection sessionConnection, String[] sessionGroups)
+		{
+			id = sessionId;
+			connection = sessionConnection;
+			groups = sessionGroups;
+		}
+
+		boolean isTarget(String target)
+		{
+			if(target.equals(ALL) || target.equals(id))
+			{
+				return true;
+			}
+			for(int i = 0; i < groups.length; i++)
+			{
+				if(groups[i].equals(target))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private final Connection.Listener listener;
+	private volatile Session[] sessions = new Session[0];
+	private volatile TrafficCapture capture;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param connectionListener
+	 *            Receives the events of all the connections
+	 */
+	public ConnectionManager(Connection.Listener connectionListener)
+	{
+		listener = connectionListener;
+	}
+
+	/**
+	 * Opens a new connection, a robot with the same id is disconnected first.
+	 * 
+	 * @param id
+	 *            Name the robot is addressed with, not null. Bluetooth robots
+	 *            use the address of their module since modules of the same
+	 *            model often share a name.
+	 * @param transport
+	 *            Link to the robot
+	 * @return The new connection
+	 */
+	public synchronized Connection open(String id, Transport transport)
+	{
+		if(id == null)
+		{
+			throw new IllegalArgumentException("A robot needs an id");
+		}
+		Session old = find(id);
+		if(old != null)
+		{
+			old.connection.cancel();
+			remove(old.connection);
+		}
+
+		Connection connection = new Connection(transport, this);
+		Session[] current = sessions;
+		Session[] next = new Session[current.length + 1];
+		System.arraycopy(current, 0, next, 0, current.length);
+		next[current.length] = new Session(id, connection, new String[0]);
+		sessions = next;
+
+		connection.setCapture(capture);
+		connection.connect();
+		return connection;
+	}
+
+	private Session find(String id)
+	{
+		Session[] current = sessions;
+		for(int i = 0; i < current.length; i++)
+		{
+			if(current[i].id.equals(id))
+			{
+				return current[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes a connection from the sessions, it's not stopped.
+	 * 
+	 * @return False if the connection was not one of the sessions
+	 */
+	private synchronized boolean remove(Connection connection)
+	{
+		Session[] current = sessions;
+		for(int i = 0; i < current.length; i++)
+		{
+			if(current[i].connection == connection)
+			{
+				Session[] next = new Session[current.length - 1];
+				System.arraycopy(current, 0, next, 0, i);
+				System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+				sessions = next;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds a robot to a group, the group exists as long as one robot is in it.
+	 * 
+	 * @return False if there's no robot with this id
+	 */
+	public synchronized boolean addToGroup(String id, String group)
+	{
+		return setGroups(id, group, true);
+	}
+
+	/**
+	 * @return False if there's no robot with this id
+	 */
+	public synchronized boolean removeFromGroup(String id, String group)
+	{
+		return setGroups(id, group, false);
+	}
+
+	private boolean setGroups(String id, String group, boolean add)
+	{
+		Session[] current = sessions;
+		for(int i = 0; i < current.length; i++)
+		{
+			Session session = current[i];
+			if(session.id.equals(id))
+			{
+				// Sessions are never changed, a new one replaces it
+				int kept = 0;
+				for(int j = 0; j < session.groups.length; j++)
+				{
+					if(!session.groups[j].equals(group))
+					{
+						kept++;
+					}
+				}
+				String[] groups = new String[add ? kept + 1 : kept];
+				int count = 0;
+				for(int j = 0; j < session.groups.length; j++)
+				{
+					if(!session.groups[j].equals(group))
+					{
+						groups[count++] = session.groups[j];
+					}
+				}
+				if(add)
+				{
+					groups[count] = group;
+				}
+
+				Session[] next = current.clone();
+				next[i] = new Session(id, session.connection, groups);
+				sessions = next;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Queues a command for every targeted robot.
+	 * 
+	 * @param target
+	 *            Id of a robot, name of a group or ALL
+	 * @param out
+	 *            Command to send
+	 * @return Number of robots the command was queued for
+	 */
+	public int write(String target, String out)
+	{
+		Session[] current = sessions;
+		int count = 0;
+		for(int i = 0; i < current.length; i++)
+		{
+			if(current[i].isTarget(target) && current[i].connection.write(out))
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Queues new wheel speeds for every targeted robot.
+	 * 
+	 * @param target
+	 *            Id of a robot, name of a group or ALL
+	 * @return Number of robots the speeds were queued for
+	 */
+	public int writeSpeed(String target, int left, int right)
+	{
+		Session[] current = sessions;
+		int count = 0;
+		for(int i = 0; i < current.length; i++)
+		{
+			if(current[i].isTarget(target) && current[i].connection.writeSpeed(left, right))
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return The connection of a robot or null if there's no robot with this
+	 *         id
+	 */
+	public Connection get(String id)
+	{
+		Session session = find(id);
+		return session == null ? null : session.connection;
+	}
+
+	/**
+	 * @return The id of the robot of a connection or null if it's not one of
+	 *         the sessions anymore
+	 */
+	public String getId(Connection connection)
+	{
+		Session[] current = sessions;
+		for(int i = 0; i < current.length; i++)
+		{
+			if(current[i].connection == connection)
+			{
+				return current[i].id;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The connections currently open or opening
+	 */
+	public Connection[] getConnections()
+	{
+		Session[] current = sessions;
+		Connection[] connections = new Connection[current.length];
+		for(int i = 0; i < current.length; i++)
+		{
+			connections[i] = current[i].connection;
+		}
+		return connections;
+	}
+
+	public int size()
+	{
+		return sessions.length;
+	}
+
+	/**
+	 * Sets if the listener is told about the sent commands, for all the
+	 * connections.
+	 */
+	public void setEchoWrites(boolean echo)
+	{
+		Session[] current = sessions;
+		for(int i = 0; i < current.length; i++)
+		{
+			current[i].connection.setEchoWrites(echo);
+		}
+	}
+
+	/**
+	 * Sets the capture the frames of all the connections are saved to, the
+	 * ones opened later included.
+	 * 
+	 * @param trafficCapture
+	 *            Capture to use, null to stop saving the frames
+	 */
+	public void setCapture(TrafficCapture trafficCapture)
+	{
+		capture = trafficCapture;
+		Session[] current = sessions;
+		for(int i = 0; i < current.length; i++)
+		{
+			current[i].connection.setCapture(trafficCapture);
+		}
+	}
+
+	/**
+	 * Disconnects a single robot.
+	 */
+	public void disconnect(String id)
+	{
+		Session session = find(id);
+		if(session != null)
+		{
+			session.connection.disconnect();
+		}
+	}
+
+	/**
+	 * Disconnects all the robots, the listener is told about each of them.
+	 */
+	public void disconnectAll()
+	{
+		Session[] current = sessions;
+		for(int i = 0; i < current.length; i++)
+		{
+			current[i].connection.disconnect();
+		}
+	}
+
+	public void onConnected(Connection connection)
+	{
+		listener.onConnected(connection);
+	}
+
+	public void onRead(Connection connection, String line)
+	{
+		listener.onRead(connection, line);
+	}
+
+	public void onWrite(Connection connection, String command)
+	{
+		listener.onWrite(connection, command);
+	}
+
+	public void onReconnecting(Connection connection, int attempt)
+	{
+		listener.onReconnecting(connection, attempt);
+	}
+
+	public void onReconnected(Connection connection)
+	{
+		listener.onReconnected(connection);
+	}
+
+	public void onDisconnected(Connection connection, String reason)
+	{
+		// The session is gone before the listener hears of it, so it can count the remaining ones
+		if(remove(connection))
+		{
+			listener.onDisconnected(connection, reason);
+		}
+	}
+}
@@ -16,6 +16,7 @@
 package com.bluetooth;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Set;
 
 import com.bluetooth.Device;
@@ -40,6 +41,7 @@ import android.view.View;
 import android.view.Window;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
+import android.widget.AdapterView.OnItemLongClickListener;
 import android.widget.Button;
 import android.widget.ListView;
 import android.widget.Toast;
@@ -48,6 +50,9 @@ import android.widget.Toast;
  * This class manages the initial Bluetooth device discovery and shows them in a
  * list. Paired devices and available devices are in different lists, available
  * devices also show the signal strength.
+ * <p>
+ * A long click connects to a robot in the background, so several robots can
+ * be driven together: the robot that is clicked last opens the activity list.
  */
 public class DeviceSelectActivity extends Activity implements Handler.Callback
 {
@@ -58,6 +63,8 @@ public class DeviceSelectActivity extends Activity implements Handler.Callback
 	private Button bFindDevices;
 	private BluetoothAdapter bluetoothAdapter;
 	private BluetoothRemoteControlApp appState;
+	// Robots being connected in the background, names by address as modules can share a name
+	private HashMap<String, String> addedDevices = new HashMap<String, String>();
 
 	private static final String TAG = "DeviceSelect";
 
@@ -78,12 +85,14 @@ public class DeviceSelectActivity extends Activity implements Handler.Callback
 		devPairedListAdapter = new DeviceListBaseAdapter(this, devPairedList);
 		devPairedListView.setAdapter(devPairedListAdapter);
 		devPairedListView.setOnItemClickListener(deviceClickListener);
+		devPairedListView.setOnItemLongClickListener(deviceLongClickListener);
 
 		devAvailableListView = (ListView) findViewById(R.id.lvAvailableDevices);
 		devAvailableList = new ArrayList<Device>();
 		devAvailableListAdapter = new DeviceListBaseAdapter(this, devAvailableList);
 		devAvailableListView.setAdapter(devAvailableListAdapter);
 		devAvailableListView.setOnItemClickListener(deviceClickListener);
+		devAvailableListView.setOnItemLongClickListener(deviceLongClickListener);
 
 		appState = (BluetoothRemoteControlApp) getApplicationContext();
 
@@ -141,6 +150,26 @@ public class DeviceSelectActivity extends Activity implements Handler.Callback
 		}
 	};
 
+	/**
+	 * When a Bluetooth item is long clicked this method connects to it without
+	 * leaving the list, the user can then pick the next robot.
+	 */
+	final OnItemLongClickListener deviceLongClickListener = new OnItemLongClickListener()
+	{
+		public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id)
+		{
+			bluetoothAdapter.cancelDiscovery();
+
+			Device device = (Device) parent.getItemAtPosition(position);
+			BluetoothDevice remoteDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(device.getAddress());
+			String name = remoteDevice.getName() != null ? remoteDevice.getName() : remoteDevice.getAddress();
+			addedDevices.put(remoteDevice.getAddress(), name);
+			Toast.makeText(DeviceSelectActivity.this, "Adding " + name, Toast.LENGTH_SHORT).show();
+			appState.connect(remoteDevice);
+			return true;
+		}
+	};
+
 	/**
 	 * When a message comes from either the Bluetooth activity (when enabling
 	 * Bluetooth) or the child activity it's processed here.
@@ -149,6 +178,13 @@ public class DeviceSelectActivity extends Activity implements Handler.Callback
 	 */
 	public boolean handleMessage(Message msg)
 	{
+		// A robot connected in the background, stay on the list
+		if(msg.what == BluetoothRemoteControlApp.MSG_CONNECTED && addedDevices.containsKey(msg.obj))
+		{
+			Toast.makeText(DeviceSelectActivity.this, "Connected to " + addedDevices.remove(msg.obj), Toast.LENGTH_SHORT).show();
+			return false;
+		}
+
 		// In case the connection dialog hasn't disappeared yet
 		if(connectionProgressDialog != null)
 		{
@@ -320,6 +356,8 @@ public class DeviceSelectActivity extends Activity implements Handler.Callback
 	@Override
 	protected void onResume()
 	{
+		// All the robots are disconnected when coming back to this list
+		addedDevices.clear();
 		if(BluetoothRemoteControlApp.D) Log.i(TAG, "Set handler");
 		appState.setActivityHandler(new Handler(this));
 		super.onResume();
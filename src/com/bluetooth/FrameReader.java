@@ -0,0 +1,162 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class cuts the incoming byte stream in frames, a frame being everything
+ * up to a new line character (\n). The data is read in chunks into a ring
+ * buffer that is reused for the whole connection, frames are then handed to the
+ * listener as a region of that buffer so no copy or String is made on the way.
+ * <p>
+ * A frame can span several reads, it is only handed over once its new line has
+ * arrived. When a frame is longer than the buffer it cannot be kept whole, so
+ * it is dropped up to the next new line and counted as an overflow.
+ */
+public class FrameReader
+{
+	/**
+	 * Receives the frames found by the reader. The given buffer is only valid
+	 * during the call, it is overwritten by the following reads.
+	 */
+	public interface FrameListener
+	{
+		void onFrame(byte[] buffer, int offset, int length);
+	}
+
+	private final FrameListener listener;
+	private final byte[] ring, scratch;
+	private final int mask;
+	// Positions only ever grow, the ring index is obtained with the mask
+	private int start, end;
+	private boolean overflow;
+	private int overflows;
+
+	/**
+	 * Constructor. Prepares the ring buffer.
+	 * 
+	 * @param capacity
+	 *            Size of the ring buffer, rounded up to a power of 2, it is also
+	 *            the longest frame that can be received
+	 * @param frameListener
+	 *            Where the frames are sent to
+	 */
+	public FrameReader(int capacity, FrameListener frameListener)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		ring = new byte[size];
+		// Frames that wrap around the end of the ring are put back together in here
+		scratch = new byte[size];
+		mask = size - 1;
+		listener = frameListener;
+	}
+
+	/**
+	 * Reads as many bytes as the stream has available, with a single blocking
+	 * call, and sends all the complete frames to the listener.
+	 * 
+	 * @param inStream
+	 *            Stream to read from
+	 * @return The number of bytes read or -1 if the end of the stream has been
+	 *         reached
+	 * @throws IOException
+	 *             When reading the stream failed
+	 */
+	public int read(InputStream inStream) throws IOException
+	{
+		if(end - start == ring.length)
+		{
+			// The current frame fills the whole buffer, the rest of it will be dropped
+			overflow = true;
+			start = end;
+		}
+
+		// Only read up to the end of the array, the next read will wrap around
+		int position = end & mask;
+		int length = Math.min(ring.length - position, ring.length - (end - start));
+		int bytes = inStream.read(ring, position, length);
+		if(bytes <= 0)
+		{
+			return bytes;
+		}
+
+		// Look for the end of frames in the new data only
+		for(int i = end, last = end + bytes; i != last; i++)
+		{
+			if(ring[i & mask] == '\n')
+			{
+				if(overflow)
+				{
+					// End of a frame that did not fit, start clean from the next one
+					overflow = false;
+					overflows++;
+				}
+				else
+				{
+					dispatch(start, i - start);
+				}
+				start = i + 1;
+			}
+		}
+		end += bytes;
+		return bytes;
+	}
+
+	/**
+	 * Sends a frame to the listener, if it's split by the end of the ring it is
+	 * first copied in one piece.
+	 */
+	private void dispatch(int from, int length)
+	{
+		// println() used in Arduino code adds \r\n to the end, the carriage return is not part of the frame
+		if(length > 0 && ring[(from + length - 1) & mask] == '\r')
+		{
+			length--;
+		}
+
+		int offset = from & mask;
+		if(offset + length <= ring.length)
+		{
+			listener.onFrame(ring, offset, length);
+		}
+		else
+		{
+			int head = ring.length - offset;
+			System.arraycopy(ring, offset, scratch, 0, head);
+			System.arraycopy(ring, 0, scratch, head, length - head);
+			listener.onFrame(scratch, 0, length);
+		}
+	}
+
+	/**
+	 * Forgets any partial frame, used when the stream is changed.
+	 */
+	public void clear()
+	{
+		start = end;
+		overflow = false;
+	}
+
+	/**
+	 * @return Number of frames dropped because they were longer than the buffer
+	 */
+	public int getOverflows()
+	{
+		return overflows;
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.util.Arrays;
+
+/**
+ * This class counts latencies in a fixed set of buckets, recording a value is a
+ * couple of shifts and an increment and the memory used never grows.
+ * <p>
+ * Values under 16 have their own bucket, above that every power of 2 is split
+ * in 16 buckets so a percentile is never off by more than 1/16 (about 6%) of
+ * its value. Values are in microseconds, anything over Integer.MAX_VALUE (35
+ * minutes) is counted in the last bucket.
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BUCKETS = 16;
+	// 16 exact values then 16 buckets for each power of 2 from 2^4 to 2^30
+	private static final int BUCKETS = SUB_BUCKETS * 28;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count, total, max;
+
+	/**
+	 * Adds a latency to the histogram.
+	 * 
+	 * @param micros
+	 *            Latency in microseconds
+	 */
+	public void record(long micros)
+	{
+		long value = Math.max(0, Math.min(Integer.MAX_VALUE, micros));
+		counts[bucketOf(value)]++;
+		count++;
+		total += value;
+		if(value > max)
+		{
+			max = value;
+		}
+	}
+
+	private static int bucketOf(long value)
+	{
+		if(value < SUB_BUCKETS)
+		{
+			return (int) value;
+		}
+		// Keep the 4 bits after the highest one
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - 4;
+		return (exponent - 3) * SUB_BUCKETS + (int) (value >> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return Highest value that falls in the bucket
+	 */
+	private static long highestOf(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)
+		{
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * @param percentile
+	 *            Percentile between 0 and 100
+	 * @return Latency in microseconds under which the given percentage of the
+	 *         values fall, 0 if the histogram is empty
+	 */
+	public long getPercentile(double percentile)
+	{
+		if(count == 0)
+		{
+			return 0;
+		}
+
+		// Rank of the value looked for, counting from 1
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts[i];
+			if(seen >= rank)
+			{
+				return Math.min(highestOf(i), max);
+			}
+		}
+		return max;
+	}
+
+	public long getCount()
+	{
+		return count;
+	}
+
+	public long getMax()
+	{
+		return max;
+	}
+
+	/**
+	 * @return Average latency in microseconds, 0 if the histogram is empty
+	 */
+	public long getMean()
+	{
+		return count == 0 ? 0 : total / count;
+	}
+
+	/**
+	 * Adds all the values of another histogram to this one.
+	 */
+	public void add(LatencyHistogram other)
+	{
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+
+	public void reset()
+	{
+		Arrays.fill(counts, 0);
+		count = total = max = 0;
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+/**
+ * This class counts the round trip time of the commands: the time between the
+ * moment a command is written and the moment the device's reply arrives. The
+ * latencies are counted in one histogram per command type, nothing is
+ * allocated once the object exists.
+ * <p>
+ * The commands that had to be sent again and the replies that could not be
+ * matched with a command are counted as well.
+ */
+public class LatencyStats
+{
+	// Command types, the replies of each are counted apart
+	public static final int TYPE_SPEED = 0;
+	public static final int TYPE_RESET = 1;
+	public static final int TYPE_KEEP_ALIVE = 2;
+	public static final int TYPE_OTHER = 3;
+	public static final int TYPES = 4;
+
+	private static final String[] NAMES = { "Speed", "Reset", "Keep-alive", "Other" };
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[TYPES];
+	private long unmatched, retransmissions, losses;
+
+	/**
+	 * Constructor. Prepares empty histograms.
+	 */
+	public LatencyStats()
+	{
+		for(int i = 0; i < TYPES; i++)
+		{
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * @return The type under which the replies to the command are counted
+	 */
+	public static int typeOf(String command)
+	{
+		if(command == CommandQueue.SPEED || command == CommandQueue.PROBE || Protocol.isSpeed(command))
+		{
+			return TYPE_SPEED;
+		}
+		else if(command.equals("r"))
+		{
+			return TYPE_RESET;
+		}
+		else if(command == CommandQueue.FILLER)
+		{
+			return TYPE_KEEP_ALIVE;
+		}
+		return TYPE_OTHER;
+	}
+
+	public static String getName(int type)
+	{
+		return NAMES[type];
+	}
+
+	/**
+	 * Adds the round trip time of an answered command.
+	 * 
+	 * @param type
+	 *            One of the TYPE_* constants
+	 * @param micros
+	 *            Round trip time in microseconds
+	 */
+	public synchronized void record(int type, long micros)
+	{
+		histograms[type].record(micros);
+	}
+
+	/**
+	 * Counts a reply that does not match any command.
+	 */
+	public synchronized void unmatched()
+	{
+		unmatched++;
+	}
+
+	/**
+	 * Counts a command sent again because it was not answered in time.
+	 */
+	public synchronized void retransmitted()
+	{
+		retransmissions++;
+	}
+
+	/**
+	 * Counts a command given up on, it was never answered.
+	 */
+	public synchronized void lost()
+	{
+		losses++;
+	}
+
+	/**
+	 * Copies the histogram of a command type, the copy can be read while the
+	 * connection keeps counting.
+	 * 
+	 * @param type
+	 *            One of the TYPE_* constants
+	 * @param copy
+	 *            Where the histogram is copied to
+	 */
+	public synchronized void copy(int type, LatencyHistogram copy)
+	{
+		copy.reset();
+		copy.add(histograms[type]);
+	}
+
+	/**
+	 * Copies the histograms of all the command types together.
+	 */
+	public synchronized void copyAll(LatencyHistogram copy)
+	{
+		copy.reset();
+		for(int i = 0; i < TYPES; i++)
+		{
+			copy.add(histograms[i]);
+		}
+	}
+
+	/**
+	 * @return Number of received replies that could not be matched
+	 */
+	public synchronized long getUnmatched()
+	{
+		return unmatched;
+	}
+
+	public synchronized long getRetransmissions()
+	{
+		return retransmissions;
+	}
+
+	public synchronized long getLosses()
+	{
+		return losses;
+	}
+
+	/**
+	 * Adds the latencies counted by another object to this one, used to keep
+	 * the statistics of the sessions that have ended.
+	 */
+	public void add(LatencyStats other)
+	{
+		LatencyHistogram copy = new LatencyHistogram();
+		long otherUnmatched, otherRetransmissions, otherLosses;
+		synchronized(other)
+		{
+			otherUnmatched = other.unmatched;
+			otherRetransmissions = other.retransmissions;
+			otherLosses = other.losses;
+		}
+		synchronized(this)
+		{
+			for(int i = 0; i < TYPES; i++)
+			{
+				other.copy(i, copy);
+				histograms[i].add(copy);
+			}
+			unmatched += otherUnmatched;
+			retransmissions += otherRetransmissions;
+			losses += otherLosses;
+		}
+	}
+}
@@ -0,0 +1,375 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class hands the messages of the connections (received lines, sent
+ * commands...) to any number of subscribers. Each subscriber chooses the kinds
+ * of messages it wants and gets them on its own thread, so a slow subscriber
+ * (like the UI) never holds back the connections nor the other subscribers.
+ * <p>
+ * Every publishing thread has its own ring per subscriber: a ring only ever
+ * has one thread writing to it and one thread reading from it, so no lock is
+ * needed to pass a message. When a subscriber does not keep up its rings fill
+ * up and the new messages are dropped and counted, the connections never wait.
+ */
+public class MessageBus
+{
+	// Kinds of messages, subscribers combine them to choose what they get
+	public static final int READ = 1;
+	public static final int WRITE = 2;
+	public static final int ALL = READ | WRITE;
+
+	// Messages each ring holds, a power of 2
+	private static final int RING_SIZE = 256;
+
+	/**
+	 * Receives the messages, always from the subscription's own thread.
+	 */
+	public interface Subscriber
+	{
+		/**
+		 * @param kind
+		 *            One of the kind constants
+		 * @param source
+		 *            Connection of the robot the message is about
+		 * @param text
+		 *            The received line or the sent command
+		 */
+		void onMessage(int kind, Connection source, String text);
+	}
+
+	/**
+	 * Messages passed from one publishing thread to one subscriber.
+	 */
+	private static class Ring
+	{
+		final Thread producer;
+		final int[] kinds = new int[RING_SIZE];
+		final Connection[] sources = new Connection[RING_SIZE];
+		final String[] texts = new String[RING_SIZE];
+		// Only written by the producer and the consumer respectively
+		final AtomicLong tail = new AtomicLong(), head = new AtomicLong();
+
+		Ring(Thread producerThread)
+		{
+			producer = producerThread;
+		}
+
+		boolean offer(int kind, Connection source, String text)
+		{
+			long position = tail.get();
+			if(position - head.get() == RING_SIZE)
+			{
+				return false;
+			}
+			int index = (int) position & (RING_SIZE - 1);
+			kinds[index] = kind;
+			sources[index] = source;
+			texts[index] = text;
+			// Publishes the slot to the consumer. A full barrier: the producer
+			// reads waiting next, and must not read it before the consumer can
+			// see the message or both could miss each other.
+			tail.set(position + 1);
+			return true;
+		}
+
+		boolean isEmpty()
+		{
+			return head.get() == tail.get();
+		}
+	}
+
+	/**
+	 * A subscriber, the kinds of messages it wants and the thread that
+	 * delivers them.
+	 */
+	public class Subscription extends Thread
+	{
+		private final Subscriber subscriber;
+		private final int kinds;
+		private volatile Ring[] rings = new Ring[0];
+		private volatile boolean running = true, waiting;
+		private final AtomicLong dropped = new AtomicLong();
+
+		private Subscription(Subscriber messageSubscriber, int messageKinds)
+		{
+			super("MessageBus");
+			subscriber = messageSubscriber;
+			kinds = messageKinds;
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			while(running)
+			{
+				if(!drain())
+				{
+					removeDeadRings(this);
+					// Announce the wait before the last look so a new message can't be missed
+					waiting = true;
+					if(isEmpty() && running)
+					{
+						LockSupport.park(this);
+					}
+					waiting = false;
+				}
+			}
+		}
+
+		/**
+		 * Delivers everything the rings hold.
+		 * 
+		 * @return False if there was nothing
+		 */
+		private boolean drain()
+		{
+			boolean delivered = false;
+			Ring[] current = rings;
+			for(int i = 0; i < current.length; i++)
+			{
+				Ring ring = current[i];
+				long position = ring.head.get();
+				while(position != ring.tail.get())
+				{
+					int index = (int) position & (RING_SIZE - 1);
+					int kind = ring.kinds[index];
+					Connection source = ring.sources[index];
+					String text = ring.texts[index];
+					ring.sources[index] = null;
+					ring.texts[index] = null;
+					ring.head.lazySet(++position);
+
+					subscriber.onMessage(kind, source, text);
+					delivered = true;
+				}
+			}
+			return delivered;
+		}
+
+		private boolean isEmpty()
+		{
+			Ring[] current = rings;
+			for(int i = 0; i < current.length; i++)
+			{
+				if(!current[i].isEmpty())
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void wake()
+		{
+			if(waiting)
+			{
+				LockSupport.unpark(this);
+			}
+		}
+
+		/**
+		 * @return Number of messages dropped because the subscriber did not
+		 *         keep up
+		 */
+		public long getDropped()
+		{
+			return dropped.get();
+		}
+
+		public int getKinds()
+		{
+			return kinds;
+		}
+	}
+
+	/**
+	 * The rings of a publishing thread, one per subscription.
+	 */
+	private static class Producer
+	{
+		Subscription[] subscriptions = new Subscription[0];
+		Ring[] rings = new Ring[0];
+	}
+
+	private volatile Subscription[] subscriptions = new Subscription[0];
+	private final ThreadLocal<Producer> producers = new ThreadLocal<Producer>()
+	{
+		protected Producer initialValue()
+		{
+			return new Producer();
+		}
+	};
+
+	/**
+	 * Adds a subscriber, it starts getting the messages published from now
+	 * on.
+	 * 
+	 * @param subscriber
+	 *            Receives the messages on the subscription's thread
+	 * @param kinds
+	 *            Kinds of messages wanted, constants combined with |
+	 * @return The subscription, needed to unsubscribe
+	 */
+	public synchronized Subscription subscribe(Subscriber subscriber, int kinds)
+	{
+		Subscription subscription = new Subscription(subscriber, kinds);
+		Subscription[] current = subscriptions;
+		Subscription[] next = new Subscription[current.length + 1];
+		System.arraycopy(current, 0, next, 0, current.length);
+		next[current.length] = subscription;
+		subscriptions = next;
+		subscription.start();
+		return subscription;
+	}
+
+	/**
+	 * Removes a subscriber, the messages not delivered yet are dropped.
+	 */
+	public synchronized void unsubscribe(Subscription subscription)
+	{
+		Subscription[] current = subscriptions;
+		for(int i = 0; i < current.length; i++)
+		{
+			if(current[i] == subscription)
+			{
+				Subscription[] next = new Subscription[current.length - 1];
+				System.arraycopy(current, 0, next, 0, i);
+				System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+				subscriptions = next;
+				break;
+			}
+		}
+		subscription.running = false;
+		LockSupport.unpark(subscription);
+	}
+
+	/**
+	 * @return The kinds of messages at least one subscriber wants, publishing
+	 *         other kinds is useless
+	 */
+	public int getKinds()
+	{
+		Subscription[] current = subscriptions;
+		int kinds = 0;
+		for(int i = 0; i < current.length; i++)
+		{
+			kinds |= current[i].kinds;
+		}
+		return kinds;
+	}
+
+	/**
+	 * Hands a message to all the subscribers that want its kind. It never
+	 * waits, any thread can publish.
+	 * 
+	 * @param kind
+	 *            One of the kind constants
+	 * @param source
+	 *            Connection of the robot the message is about
+	 * @param text
+	 *            Content of the message
+	 */
+	public void publish(int kind, Connection source, String text)
+	{
+		Producer producer = producers.get();
+		Subscription[] current = subscriptions;
+		if(producer.subscriptions != current)
+		{
+			updateRings(producer, current);
+		}
+
+		for(int i = 0; i < current.length; i++)
+		{
+			Subscription subscription = current[i];
+			if((subscription.kinds & kind) != 0)
+			{
+				if(!producer.rings[i].offer(kind, source, text))
+				{
+					subscription.dropped.incrementAndGet();
+				}
+				subscription.wake();
+			}
+		}
+	}
+
+	/**
+	 * Gives the publishing thread a ring for each new subscription, called
+	 * when the subscriptions changed since its last message.
+	 */
+	private synchronized void updateRings(Producer producer, Subscription[] current)
+	{
+		Ring[] rings = new Ring[current.length];
+		for(int i = 0; i < current.length; i++)
+		{
+			// Keep the ring of the subscriptions that were already there
+			for(int j = 0; j < producer.subscriptions.length; j++)
+			{
+				if(producer.subscriptions[j] == current[i])
+				{
+					rings[i] = producer.rings[j];
+				}
+			}
+			if(rings[i] == null)
+			{
+				rings[i] = new Ring(Thread.currentThread());
+				Ring[] subscriptionRings = current[i].rings;
+				Ring[] next = new Ring[subscriptionRings.length + 1];
+				System.arraycopy(subscriptionRings, 0, next, 0, subscriptionRings.length);
+				next[subscriptionRings.length] = rings[i];
+				current[i].rings = next;
+			}
+		}
+		producer.rings = rings;
+		producer.subscriptions = current;
+	}
+
+	/**
+	 * Forgets the empty rings of the threads that have ended, connection
+	 * threads come and go with the robots.
+	 */
+	private synchronized void removeDeadRings(Subscription subscription)
+	{
+		Ring[] current = subscription.rings;
+		int alive = 0;
+		for(int i = 0; i < current.length; i++)
+		{
+			if(current[i].producer.isAlive() || !current[i].isEmpty())
+			{
+				alive++;
+			}
+		}
+		if(alive == current.length)
+		{
+			return;
+		}
+
+		Ring[] next = new Ring[alive];
+		int count = 0;
+		for(int i = 0; i < current.length; i++)
+		{
+			if(current[i].producer.isAlive() || !current[i].isEmpty())
+			{
+				next[count++] = current[i];
+			}
+		}
+		subscription.rings = next;
+	}
+}
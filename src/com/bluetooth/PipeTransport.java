@@ -0,0 +1,213 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * In-process transport: the device is an object in the same program and the
+ * link is a pair of memory pipes. This lets the whole protocol run on a plain
+ * JVM without a phone or a radio, against a simulated device.
+ */
+public class PipeTransport implements Transport
+{
+	/**
+	 * The device end of the link. It's handed new streams each time the
+	 * transport connects and has to serve them from its own thread.
+	 */
+	public interface Peer
+	{
+		void accept(InputStream fromApplication, OutputStream toApplication);
+	}
+
+	private final Peer peer;
+	private final String name;
+	private final int bufferSize;
+	private volatile Pipe toPeer, fromPeer;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param peerName
+	 *            Name of the simulated device
+	 * @param pipeSize
+	 *            Number of bytes each pipe holds before the writer waits
+	 * @param devicePeer
+	 *            The device end of the link
+	 */
+	public PipeTransport(String peerName, int pipeSize, Peer devicePeer)
+	{
+		name = peerName;
+		bufferSize = pipeSize;
+		peer = devicePeer;
+	}
+
+	public void connect() throws IOException
+	{
+		toPeer = new Pipe(bufferSize);
+		fromPeer = new Pipe(bufferSize);
+		peer.accept(toPeer.input, fromPeer.output);
+	}
+
+	public InputStream getInputStream() throws IOException
+	{
+		return fromPeer.input;
+	}
+
+	public OutputStream getOutputStream() throws IOException
+	{
+		return toPeer.output;
+	}
+
+	public void close() throws IOException
+	{
+		if(toPeer != null)
+		{
+			toPeer.close();
+		}
+		if(fromPeer != null)
+		{
+			fromPeer.close();
+		}
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * A one way memory pipe with a fixed size ring buffer. Closing it makes
+	 * reads return the end of the stream and writes fail, on both ends.
+	 */
+	private static class Pipe
+	{
+		private final byte[] buffer;
+		private int head, count;
+		private boolean closed;
+
+		final InputStream input = new InputStream()
+		{
+			public int read() throws IOException
+			{
+				byte[] one = new byte[1];
+				return Pipe.this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				return Pipe.this.read(b, off, len);
+			}
+
+			public void close()
+			{
+				Pipe.this.close();
+			}
+		};
+
+		final OutputStream output = new OutputStream()
+		{
+			public void write(int b) throws IOException
+			{
+				Pipe.this.write(new byte[] {(byte) b}, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				Pipe.this.write(b, off, len);
+			}
+
+			public void close()
+			{
+				Pipe.this.close();
+			}
+		};
+
+		Pipe(int size)
+		{
+			buffer = new byte[size];
+		}
+
+		synchronized int read(byte[] b, int off, int len) throws IOException
+		{
+			if(len == 0)
+			{
+				return 0;
+			}
+			while(count == 0 && !closed)
+			{
+				try
+				{
+					wait();
+				}
+				catch(InterruptedException e)
+				{
+					throw new IOException("Interrupted");
+				}
+			}
+			if(count == 0)
+			{
+				return -1;
+			}
+
+			// Copy what's available, up to the end of the ring
+			int bytes = Math.min(len, Math.min(count, buffer.length - head));
+			System.arraycopy(buffer, head, b, off, bytes);
+			head = (head + bytes) % buffer.length;
+			count -= bytes;
+			notifyAll();
+			return bytes;
+		}
+
+		synchronized void write(byte[] b, int off, int len) throws IOException
+		{
+			while(len > 0)
+			{
+				while(count == buffer.length && !closed)
+				{
+					try
+					{
+						wait();
+					}
+					catch(InterruptedException e)
+					{
+						throw new IOException("Interrupted");
+					}
+				}
+				if(closed)
+				{
+					throw new IOException("Pipe closed");
+				}
+
+				int tail = (head + count) % buffer.length;
+				int bytes = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+				System.arraycopy(b, off, buffer, tail, bytes);
+				count += bytes;
+				off += bytes;
+				len -= bytes;
+				notifyAll();
+			}
+		}
+
+		synchronized void close()
+		{
+			closed = true;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,324 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+/**
+ * This class describes how commands are put on the wire. The text protocol
+ * sends each command as a line (s,left,right\n), which any device understands.
+ * <p>
+ * Devices that answer the handshake (i,b) with a line ending with ",b" also
+ * understand binary speed frames: an opcode byte, the left and right wheel
+ * speeds as signed bytes, a sequence byte and a checksum byte chosen so that
+ * the sum of the 5 bytes is 0. The opcode is above 127 so it can never be
+ * mistaken for the first character of a text command. All the other commands
+ * stay in text.
+ * <p>
+ * Devices whose reply also has a ",wN" item take sequence numbers and can hold
+ * N commands at once. Text commands are then prefixed with "#sequence;" and the
+ * device starts its replies with the same prefix, binary frames already have
+ * their sequence byte.
+ */
+public final class Protocol
+{
+	// Info command asking the device if it can take binary frames and sequence numbers
+	public static final String HANDSHAKE = "i,b,w";
+
+	// Prefix of the sequenced commands and replies: #sequence;
+	public static final byte SEQUENCE_START = '#';
+	public static final byte SEQUENCE_END = ';';
+
+	public static final byte OP_SPEED = (byte) 0x80;
+	public static final int SPEED_FRAME_LENGTH = 5;
+
+	private Protocol()
+	{
+	}
+
+	/**
+	 * @param reply
+	 *            Reply of the device to the handshake
+	 * @return True if the device takes binary speed frames
+	 */
+	public static boolean isBinaryCapable(String reply)
+	{
+		return getCapability(reply, 'b') != null;
+	}
+
+	/**
+	 * @param reply
+	 *            Reply of the device to the handshake
+	 * @return Number of commands the device can hold at once when it takes
+	 *         sequence numbers, 0 if it does not
+	 */
+	public static int getWindow(String reply)
+	{
+		String window = getCapability(reply, 'w');
+		if(window == null)
+		{
+			return 0;
+		}
+		try
+		{
+			return Math.max(1, Integer.parseInt(window));
+		}
+		catch(NumberFormatException e)
+		{
+			return 1;
+		}
+	}
+
+	/**
+	 * Looks for an item of the handshake reply, the items follow the device
+	 * name and are separated by commas.
+	 * 
+	 * @return What follows the letter in the item or null if there's no such
+	 *         item
+	 */
+	private static String getCapability(String reply, char letter)
+	{
+		String[] items = reply.split(",");
+		for(int i = 1; i < items.length; i++)
+		{
+			if(items[i].length() > 0 && items[i].charAt(0) == letter)
+			{
+				return items[i].substring(1);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return True if the command sets the wheel speeds (s,left,right)
+	 */
+	public static boolean isSpeed(String command)
+	{
+		return command.startsWith("s,");
+	}
+
+	/**
+	 * Reads the wheel speeds from a text speed command.
+	 * 
+	 * @param command
+	 *            Text command in the s,left,right format
+	 * @param speeds
+	 *            Where the left and right speeds are put
+	 * @return False if the command is not a well formed speed command
+	 */
+	public static boolean parseSpeed(String command, int[] speeds)
+	{
+		if(!isSpeed(command))
+		{
+			return false;
+		}
+
+		// Same parsing as the device: optional minus sign and digits, values separated by commas
+		int position = 2;
+		for(int i = 0; i < 2; i++)
+		{
+			boolean negative = position < command.length() && command.charAt(position) == '-';
+			if(negative)
+			{
+				position++;
+			}
+
+			int start = position;
+			long value = 0;
+			while(position < command.length() && command.charAt(position) >= '0' && command.charAt(position) <= '9' && value <= Integer.MAX_VALUE)
+			{
+				value = value * 10 + command.charAt(position++) - '0';
+			}
+			if(position == start || value > Integer.MAX_VALUE)
+			{
+				return false;
+			}
+			speeds[i] = (int) (negative ? -value : value);
+
+			// The first value is followed by a comma
+			if(i == 0 && (position == command.length() || command.charAt(position++) != ','))
+			{
+				return false;
+			}
+		}
+		// The second value ends the command
+		return position == command.length();
+	}
+
+	/**
+	 * Writes the sequence prefix of a text command.
+	 * 
+	 * @param frame
+	 *            Buffer of at least 5 bytes
+	 * @param sequence
+	 *            Sequence number, only the lowest byte is sent
+	 * @return The prefix length
+	 */
+	public static int writeSequence(byte[] frame, int sequence)
+	{
+		frame[0] = SEQUENCE_START;
+		int length = writeNumber(frame, 1, sequence & 0xff);
+		frame[length++] = SEQUENCE_END;
+		return length;
+	}
+
+	/**
+	 * Looks for the sequence prefix at the start of a reply.
+	 * 
+	 * @return The prefix length or 0 if the reply has none
+	 */
+	public static int getSequencePrefixLength(byte[] buffer, int offset, int length)
+	{
+		if(length < 3 || buffer[offset] != SEQUENCE_START)
+		{
+			return 0;
+		}
+		// Up to 3 digits followed by the end of the prefix
+		for(int i = 1; i < length && i <= 4; i++)
+		{
+			byte c = buffer[offset + i];
+			if(c == SEQUENCE_END)
+			{
+				return i > 1 ? i + 1 : 0;
+			}
+			if(c < '0' || c > '9')
+			{
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @param prefixLength
+	 *            Length given by getSequencePrefixLength()
+	 * @return The sequence number of the prefix
+	 */
+	public static int parseSequence(byte[] buffer, int offset, int prefixLength)
+	{
+		int sequence = 0;
+		for(int i = 1; i < prefixLength - 1; i++)
+		{
+			sequence = sequence * 10 + buffer[offset + i] - '0';
+		}
+		return sequence & 0xff;
+	}
+
+	/**
+	 * Writes a text speed command with its ending new line, without going
+	 * through a String.
+	 * 
+	 * @param frame
+	 *            Buffer with at least 26 bytes after the offset
+	 * @param offset
+	 *            Where to start writing in the buffer
+	 * @param left
+	 *            Left wheel speed
+	 * @param right
+	 *            Right wheel speed
+	 * @return The end of the frame in the buffer
+	 */
+	public static int writeSpeedText(byte[] frame, int offset, int left, int right)
+	{
+		frame[offset] = 's';
+		frame[offset + 1] = ',';
+		int length = writeNumber(frame, offset + 2, left);
+		frame[length++] = ',';
+		length = writeNumber(frame, length, right);
+		frame[length++] = '\n';
+		return length;
+	}
+
+	/**
+	 * Writes a text command with its ending new line.
+	 * 
+	 * @param frame
+	 *            Buffer to write to
+	 * @param offset
+	 *            Where to start writing in the buffer
+	 * @param command
+	 *            The command, without new line
+	 * @return The end of the frame in the buffer or -1 if the command does not
+	 *         fit or is not plain ASCII
+	 */
+	public static int writeText(byte[] frame, int offset, String command)
+	{
+		int length = command.length();
+		if(offset + length >= frame.length)
+		{
+			return -1;
+		}
+		for(int i = 0; i < length; i++)
+		{
+			char c = command.charAt(i);
+			if(c > 127)
+			{
+				return -1;
+			}
+			frame[offset + i] = (byte) c;
+		}
+		frame[offset + length] = '\n';
+		return offset + length + 1;
+	}
+
+	private static int writeNumber(byte[] frame, int position, int value)
+	{
+		long number = value;
+		if(number < 0)
+		{
+			frame[position++] = '-';
+			number = -number;
+		}
+
+		// Digits come out backwards, reverse them afterwards
+		int start = position;
+		do
+		{
+			frame[position++] = (byte) ('0' + number % 10);
+			number /= 10;
+		}
+		while(number > 0);
+		for(int i = start, j = position - 1; i < j; i++, j--)
+		{
+			byte digit = frame[i];
+			frame[i] = frame[j];
+			frame[j] = digit;
+		}
+		return position;
+	}
+
+	/**
+	 * Builds a binary speed frame, speeds outside of the signed byte range are
+	 * clamped (anything over 100 is full speed for the device anyway).
+	 * 
+	 * @param frame
+	 *            Buffer of at least SPEED_FRAME_LENGTH bytes
+	 * @param left
+	 *            Left wheel speed
+	 * @param right
+	 *            Right wheel speed
+	 * @param sequence
+	 *            Sequence number, only the lowest byte is sent
+	 * @return The frame length
+	 */
+	public static int writeSpeedFrame(byte[] frame, int left, int right, int sequence)
+	{
+		frame[0] = OP_SPEED;
+		frame[1] = (byte) Math.max(-127, Math.min(127, left));
+		frame[2] = (byte) Math.max(-127, Math.min(127, right));
+		frame[3] = (byte) sequence;
+		frame[4] = (byte) -(frame[0] + frame[1] + frame[2] + frame[3]);
+		return SPEED_FRAME_LENGTH;
+	}
+}
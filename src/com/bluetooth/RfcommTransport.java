@@ -0,0 +1,76 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * Bluetooth transport using the serial port profile (RFCOMM), this is what
+ * Bluetooth serial modules such as the ones on Arduino shields speak.
+ */
+public class RfcommTransport implements Transport
+{
+	// General purpose UUID
+	private static final UUID SERIAL_PORT = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+	private final BluetoothDevice device;
+	private volatile BluetoothSocket socket;
+
+	public RfcommTransport(BluetoothDevice bluetoothDevice)
+	{
+		device = bluetoothDevice;
+	}
+
+	public void connect() throws IOException
+	{
+		// A socket cannot be reused once closed, make a new one each time
+		socket = device.createInsecureRfcommSocketToServiceRecord(SERIAL_PORT);
+		socket.connect();
+	}
+
+	public InputStream getInputStream() throws IOException
+	{
+		return socket.getInputStream();
+	}
+
+	public OutputStream getOutputStream() throws IOException
+	{
+		return socket.getOutputStream();
+	}
+
+	public void close() throws IOException
+	{
+		if(socket != null)
+		{
+			socket.close();
+		}
+	}
+
+	/**
+	 * @return Name of the module, its address if the name is not known yet
+	 */
+	public String getName()
+	{
+		String name = device.getName();
+		return name != null ? name : device.getAddress();
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+/**
+ * This class works out how long to wait for a reply from the round trip times
+ * measured so far, the way TCP computes its retransmission timeout (RFC 6298):
+ * a smoothed round trip time plus four times its variation. A link with a
+ * steady latency gets a timeout close to it, a jittery one gets more slack.
+ * <p>
+ * Each time a command had to be sent again the timeout is doubled, until a
+ * command answered the first time gives a new measure. The timeout always
+ * stays within the given bounds.
+ */
+public class RttEstimator
+{
+	// Weights of a new measure: 1/8 for the average and 1/4 for the variation
+	private static final int ALPHA_SHIFT = 3;
+	private static final int BETA_SHIFT = 2;
+	private static final int K = 4;
+
+	private final long initialTimeout;
+	private long minTimeout, maxTimeout;
+	// In microseconds, 0 until the first measure
+	private long smoothed, variation;
+	private volatile long timeout;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param initialMillis
+	 *            Timeout used until the first round trip is measured
+	 * @param minMillis
+	 *            Shortest timeout
+	 * @param maxMillis
+	 *            Longest timeout
+	 */
+	public RttEstimator(int initialMillis, int minMillis, int maxMillis)
+	{
+		initialTimeout = initialMillis * 1000L;
+		setBounds(minMillis, maxMillis);
+		reset();
+	}
+
+	/**
+	 * Changes the bounds of the timeout, it's recomputed right away.
+	 */
+	public synchronized void setBounds(int minMillis, int maxMillis)
+	{
+		minTimeout = minMillis * 1000L;
+		maxTimeout = Math.max(minTimeout, maxMillis * 1000L);
+		timeout = clamp(smoothed == 0 ? initialTimeout : smoothed + Math.max(1, K * variation));
+	}
+
+	/**
+	 * Adds the round trip time of a command answered the first time it was
+	 * sent, the ones sent several times must not be counted.
+	 * 
+	 * @param micros
+	 *            Round trip time in microseconds
+	 */
+	public synchronized void sample(long micros)
+	{
+		if(smoothed == 0)
+		{
+			smoothed = Math.max(1, micros);
+			variation = micros / 2;
+		}
+		else
+		{
+			variation += (Math.abs(smoothed - micros) - variation) >> BETA_SHIFT;
+			smoothed += (micros - smoothed) >> ALPHA_SHIFT;
+		}
+		timeout = clamp(smoothed + Math.max(1, K * variation));
+	}
+
+	/**
+	 * Doubles the timeout, called when a command was not answered in time.
+	 */
+	public synchronized void backOff()
+	{
+		timeout = clamp(timeout * 2);
+	}
+
+	/**
+	 * Forgets the measures, used when the link is opened again.
+	 */
+	public synchronized void reset()
+	{
+		smoothed = variation = 0;
+		timeout = clamp(initialTimeout);
+	}
+
+	private long clamp(long micros)
+	{
+		return Math.max(minTimeout, Math.min(maxTimeout, micros));
+	}
+
+	/**
+	 * @return Time to wait for a reply in microseconds, it takes no lock
+	 */
+	public long getTimeout()
+	{
+		return timeout;
+	}
+
+	/**
+	 * @return Smoothed round trip time in microseconds, 0 before the first
+	 *         measure
+	 */
+	public synchronized long getSmoothed()
+	{
+		return smoothed;
+	}
+
+	/**
+	 * @return Variation of the round trip time in microseconds
+	 */
+	public synchronized long getVariation()
+	{
+		return variation;
+	}
+}
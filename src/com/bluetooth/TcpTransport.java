@@ -0,0 +1,70 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Transport over a plain TCP socket, for devices behind a serial to network
+ * bridge or a simulated robot running on another machine.
+ */
+public class TcpTransport implements Transport
+{
+	private final String host;
+	private final int port;
+	private volatile Socket socket;
+
+	public TcpTransport(String hostName, int portNumber)
+	{
+		host = hostName;
+		port = portNumber;
+	}
+
+	public void connect() throws IOException
+	{
+		socket = new Socket();
+		// Commands are small and sent one by one, do not wait to fill packets
+		socket.setTcpNoDelay(true);
+		socket.connect(new InetSocketAddress(host, port));
+	}
+
+	public InputStream getInputStream() throws IOException
+	{
+		return socket.getInputStream();
+	}
+
+	public OutputStream getOutputStream() throws IOException
+	{
+		return socket.getOutputStream();
+	}
+
+	public void close() throws IOException
+	{
+		if(socket != null)
+		{
+			socket.close();
+		}
+	}
+
+	public String getName()
+	{
+		return host + ":" + port;
+	}
+}
@@ -0,0 +1,176 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the last samples received from the device, each sample
+ * being one value per channel and the time it arrived. Everything is stored in
+ * arrays made once, adding and reading samples allocates nothing.
+ * <p>
+ * A single thread adds the samples (the connection's reader thread) while any
+ * number of threads read them without taking a lock. The oldest samples are
+ * overwritten when the buffer is full, a reader that fell behind is told so
+ * and starts again from the oldest sample still there.
+ */
+public class TelemetryBuffer
+{
+	private final int channels, mask;
+	// Each value is kept both ways, integers (like ADC readings) stay exact and decimals are not rounded
+	private final int[] ints;
+	private final float[] floats;
+	// System.nanoTime() when the sample arrived
+	private final long[] times;
+	// Number of samples ever added, only written by the adding thread
+	private final AtomicLong written = new AtomicLong();
+
+	/**
+	 * Constructor. Prepares the arrays.
+	 * 
+	 * @param channelCount
+	 *            Number of values in each sample
+	 * @param capacity
+	 *            Number of samples kept, rounded up to a power of 2
+	 */
+	public TelemetryBuffer(int channelCount, int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		channels = channelCount;
+		mask = size - 1;
+		ints = new int[size * channels];
+		floats = new float[size * channels];
+		times = new long[size];
+	}
+
+	public int getChannels()
+	{
+		return channels;
+	}
+
+	public int getCapacity()
+	{
+		return times.length;
+	}
+
+	/**
+	 * @return Number of samples added since the buffer was made, it's the
+	 *         position the next sample will have
+	 */
+	public long getWritten()
+	{
+		return written.get();
+	}
+
+	/**
+	 * @return Position of the oldest sample still in the buffer
+	 */
+	public long getOldest()
+	{
+		return Math.max(0, written.get() - times.length + 1);
+	}
+
+	/**
+	 * Adds a sample, only ever called by one thread.
+	 * 
+	 * @param nanos
+	 *            Arrival time of the sample
+	 * @param intValues
+	 *            Values of the channels as integers
+	 * @param floatValues
+	 *            The same values with their decimals
+	 */
+	public void add(long nanos, int[] intValues, float[] floatValues)
+	{
+		long position = written.get();
+		int index = (int) position & mask;
+		System.arraycopy(intValues, 0, ints, index * channels, channels);
+		System.arraycopy(floatValues, 0, floats, index * channels, channels);
+		times[index] = nanos;
+		// Makes the sample visible to the readers
+		written.lazySet(position + 1);
+	}
+
+	/**
+	 * Copies the integer values of a channel.
+	 * 
+	 * @param position
+	 *            Position of the first sample to copy
+	 * @param channel
+	 *            Channel to copy, from 0
+	 * @param values
+	 *            Where the values are copied to
+	 * @param nanos
+	 *            Where the arrival times are copied to, can be null
+	 * @param max
+	 *            Largest number of samples to copy
+	 * @return Number of samples copied, -1 if the samples at position have been
+	 *         overwritten: start again from getOldest()
+	 */
+	public int read(long position, int channel, int[] values, long[] nanos, int max)
+	{
+		int count = available(position, max);
+		for(int i = 0; i < count; i++)
+		{
+			int index = (int) (position + i) & mask;
+			values[i] = ints[index * channels + channel];
+			if(nanos != null)
+			{
+				nanos[i] = times[index];
+			}
+		}
+		return isOverwritten(position) ? -1 : count;
+	}
+
+	/**
+	 * Copies the decimal values of a channel, same as the integer read().
+	 */
+	public int read(long position, int channel, float[] values, long[] nanos, int max)
+	{
+		int count = available(position, max);
+		for(int i = 0; i < count; i++)
+		{
+			int index = (int) (position + i) & mask;
+			values[i] = floats[index * channels + channel];
+			if(nanos != null)
+			{
+				nanos[i] = times[index];
+			}
+		}
+		return isOverwritten(position) ? -1 : count;
+	}
+
+	private int available(long position, int max)
+	{
+		long end = written.get();
+		if(position < end - times.length + 1)
+		{
+			return 0;
+		}
+		return (int) Math.max(0, Math.min(max, end - position));
+	}
+
+	/**
+	 * The adding thread might have gone round the ring while the samples were
+	 * copied, in which case the copy mixes old and new samples. The slot of the
+	 * sample being added is not readable either, it's written before being
+	 * counted.
+	 */
+	private boolean isOverwritten(long position)
+	{
+		return position <= written.get() - times.length;
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+/**
+ * This class reads the numbers the device streams (like the ADC readings sent
+ * after the "a" command) straight from the receive buffer into a
+ * TelemetryBuffer. A line is a sample when it only holds numbers separated by
+ * commas, one per channel: "512" or "12,-3.5,7". No String is made and nothing
+ * is allocated, so the decoder keeps up with the link without waking up the
+ * garbage collector.
+ * <p>
+ * The lines that are not samples are left to the connection, they are handed
+ * to the listener as usual.
+ */
+public class TelemetryDecoder
+{
+	// Decimals after these are ignored, the float can't hold them anyway
+	private static final int MAX_DECIMALS = 9;
+	private static final float[] POWERS_OF_TEN = { 1f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f };
+
+	private final TelemetryBuffer buffer;
+	// The values of the current line, copied into the buffer once the whole line is read
+	private final int[] ints;
+	private final float[] floats;
+	private volatile long samples, rejected;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param telemetryBuffer
+	 *            Where the samples go, its number of channels is the number of
+	 *            values a line must have
+	 */
+	public TelemetryDecoder(TelemetryBuffer telemetryBuffer)
+	{
+		buffer = telemetryBuffer;
+		ints = new int[buffer.getChannels()];
+		floats = new float[buffer.getChannels()];
+	}
+
+	public TelemetryBuffer getBuffer()
+	{
+		return buffer;
+	}
+
+	/**
+	 * Reads a line, called by the connection's reader thread for every line
+	 * received.
+	 * 
+	 * @param line
+	 *            Buffer holding the line, without its new line
+	 * @return True if the line was a sample and has been added to the buffer
+	 */
+	public boolean decode(byte[] line, int offset, int length)
+	{
+		int end = offset + length;
+		int channel = 0;
+		int i = offset;
+		while(true)
+		{
+			if(channel == ints.length)
+			{
+				// More values than channels
+				return reject();
+			}
+
+			boolean negative = false;
+			if(i < end && (line[i] == '-' || line[i] == '+'))
+			{
+				negative = line[i++] == '-';
+			}
+
+			// Integer part, an int is enough for anything the device sends
+			long integer = 0;
+			int digits = 0;
+			while(i < end && line[i] >= '0' && line[i] <= '9')
+			{
+				integer = integer * 10 + (line[i++] - '0');
+				if(integer > Integer.MAX_VALUE)
+				{
+					return reject();
+				}
+				digits++;
+			}
+
+			long fraction = 0;
+			int decimals = 0;
+			if(i < end && line[i] == '.')
+			{
+				i++;
+				while(i < end && line[i] >= '0' && line[i] <= '9')
+				{
+					if(decimals < MAX_DECIMALS)
+					{
+						fraction = fraction * 10 + (line[i] - '0');
+						decimals++;
+					}
+					i++;
+					digits++;
+				}
+			}
+			if(digits == 0)
+			{
+				return reject();
+			}
+
+			int value = (int) integer;
+			ints[channel] = negative ? -value : value;
+			float decimal = value + fraction / POWERS_OF_TEN[decimals];
+			floats[channel] = negative ? -decimal : decimal;
+			channel++;
+
+			if(i == end)
+			{
+				break;
+			}
+			if(line[i++] != ',')
+			{
+				return reject();
+			}
+		}
+
+		if(channel != ints.length)
+		{
+			return reject();
+		}
+		buffer.add(System.nanoTime(), ints, floats);
+		samples++;
+		return true;
+	}
+
+	private boolean reject()
+	{
+		rejected++;
+		return false;
+	}
+
+	/**
+	 * @return Number of lines added to the buffer
+	 */
+	public long getSamples()
+	{
+		return samples;
+	}
+
+	/**
+	 * @return Number of lines that were not samples
+	 */
+	public long getRejected()
+	{
+		return rejected;
+	}
+}
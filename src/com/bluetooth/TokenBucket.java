@@ -0,0 +1,83 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+/**
+ * This class limits the rate commands are sent at. Tokens come in at a steady
+ * rate and are kept up to the burst size, sending a command takes one. Instead
+ * of counting tokens the bucket keeps the time at which the next token would be
+ * free, so taking one is a single subtraction and no timer is needed.
+ * <p>
+ * Only one thread takes tokens (the writer thread), the rate can be changed by
+ * any thread.
+ */
+public class TokenBucket
+{
+	// Time between two tokens, 0 when there's no limit
+	private volatile long interval;
+	private volatile int burst = 1;
+	// Time at which the next token is free
+	private long next;
+
+	/**
+	 * Sets the rate, the tokens saved so far are kept.
+	 * 
+	 * @param perSecond
+	 *            Commands per second, 0 to remove the limit
+	 * @param burstSize
+	 *            Commands that can be sent at once after a pause
+	 */
+	public void setRate(float perSecond, int burstSize)
+	{
+		burst = Math.max(1, burstSize);
+		interval = perSecond > 0 ? (long) (1000000000 / perSecond) : 0;
+	}
+
+	/**
+	 * @return Commands per second, 0 when there's no limit
+	 */
+	public float getRate()
+	{
+		long current = interval;
+		return current == 0 ? 0 : 1000000000f / current;
+	}
+
+	/**
+	 * Takes a token, it might not be free yet.
+	 * 
+	 * @return Time to wait in nanoseconds before the token is free, 0 to send
+	 *         right away
+	 */
+	public long take()
+	{
+		long current = interval;
+		if(current == 0)
+		{
+			return 0;
+		}
+
+		long now = System.nanoTime();
+		// A full bucket does not get any fuller
+		long full = now - (burst - 1) * current;
+		if(next - full < 0)
+		{
+			next = full;
+		}
+		long wait = next - now;
+		next += current;
+		return Math.max(0, wait);
+	}
+}
@@ -0,0 +1,308 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class saves every frame sent and received by the connections to a file,
+ * to look at what happened on the link after a run. The connection threads only
+ * copy the frame into a slot of a staging ring, a thread of its own writes the
+ * slots to the file in batches. Adding a frame never waits: when the ring is
+ * full (the disk can't keep up) the frame is dropped and counted.
+ * <p>
+ * Any number of threads can add frames, a slot is claimed by moving the tail
+ * forward with a compare and set. Each slot has a sequence number telling if
+ * it's free for the producers or filled for the writer, the way a bounded
+ * multi-producer queue hands slots over without a lock.
+ * <p>
+ * The file starts with the MAGIC bytes and the time the capture started (in
+ * milliseconds since 1970), each record is then:
+ * <ul>
+ * <li>the time since the start of the capture in nanoseconds, 8 bytes</li>
+ * <li>the direction, 1 byte: IN, OUT or SESSION</li>
+ * <li>the session, 4 bytes</li>
+ * <li>the length of the frame, 2 bytes</li>
+ * <li>the length of the bytes that follow, 2 bytes, less than the frame when it
+ * was cut to fit the slot</li>
+ * </ul>
+ * A SESSION record starts a session, its bytes are the name of the device. The
+ * numbers are big endian, the file can be read with a DataInputStream (see
+ * CaptureConverter).
+ */
+public class TrafficCapture extends Thread
+{
+	public static final byte[] MAGIC = { 'B', 'B', 'C', '1' };
+	public static final int IN = 0;
+	public static final int OUT = 1;
+	public static final int SESSION = 2;
+	// Bytes kept of each frame, the longer ones are cut
+	public static final int MAX_PAYLOAD = 128;
+	public static final int HEADER_LENGTH = 17;
+
+	// Time the writer sleeps when the ring is empty, the file is at most this late
+	private static final long FLUSH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final FileChannel channel;
+	private final FileOutputStream outStream;
+	private final long start = System.nanoTime();
+	private final int mask;
+	// Sequence of each slot: its position when free, its position + 1 when filled
+	private final AtomicLongArray sequences;
+	private final long[] times;
+	private final int[] sessions;
+	private final byte[] directions;
+	private final short[] lengths;
+	private final byte[] payloads;
+	private final AtomicLong tail = new AtomicLong();
+	// Only used by the writer thread
+	private long head;
+	private final ByteBuffer batch;
+	private final AtomicInteger sessionCount = new AtomicInteger();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile long written;
+	private volatile boolean running = true;
+
+	/**
+	 * Constructor. Creates the file and starts the writer thread.
+	 * 
+	 * @param file
+	 *            File to write to, it's replaced
+	 * @param slots
+	 *            Frames the staging ring holds, rounded up to a power of 2
+	 * @throws IOException
+	 *             When the file can't be written
+	 */
+	public TrafficCapture(File file, int slots) throws IOException
+	{
+		super("Capture");
+		int capacity = Integer.highestOneBit(Math.max(2, slots) - 1) << 1;
+		mask = capacity - 1;
+		sequences = new AtomicLongArray(capacity);
+		for(int i = 0; i < capacity; i++)
+		{
+			sequences.set(i, i);
+		}
+		times = new long[capacity];
+		sessions = new int[capacity];
+		directions = new byte[capacity];
+		lengths = new short[capacity];
+		payloads = new byte[capacity * MAX_PAYLOAD];
+		// A quarter of the ring fits in a batch
+		batch = ByteBuffer.allocateDirect(Math.max(1, capacity / 4) * (HEADER_LENGTH + MAX_PAYLOAD));
+
+		outStream = new FileOutputStream(file);
+		channel = outStream.getChannel();
+		batch.put(MAGIC).putLong(System.currentTimeMillis());
+		setDaemon(true);
+		start();
+	}
+
+	/**
+	 * Starts a new session, used each time a link is opened so the frames of
+	 * every link can be told apart.
+	 * 
+	 * @param name
+	 *            Name of the device
+	 * @return Number of the session, given to add()
+	 */
+	public int newSession(String name)
+	{
+		int session = sessionCount.incrementAndGet();
+		try
+		{
+			byte[] bytes = name.getBytes("UTF-8");
+			add(session, SESSION, bytes, 0, bytes.length);
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			e.printStackTrace();
+		}
+		return session;
+	}
+
+	/**
+	 * Stages a frame, it's copied so the buffer can be reused right away. Never
+	 * waits and allocates nothing.
+	 * 
+	 * @param session
+	 *            Session given by newSession()
+	 * @param direction
+	 *            IN or OUT
+	 * @return False if the frame was dropped because the ring is full
+	 */
+	public boolean add(int session, int direction, byte[] buffer, int offset, int length)
+	{
+		long time = System.nanoTime() - start;
+		long position;
+		while(true)
+		{
+			position = tail.get();
+			long sequence = sequences.get((int) position & mask);
+			if(sequence == position)
+			{
+				// Free, claim it if no other thread did meanwhile
+				if(tail.compareAndSet(position, position + 1))
+				{
+					break;
+				}
+			}
+			else if(sequence < position)
+			{
+				// The writer has not emptied it yet, the ring is full
+				dropped.incrementAndGet();
+				LockSupport.unpark(this);
+				return false;
+			}
+		}
+
+		int slot = (int) position & mask;
+		times[slot] = time;
+		sessions[slot] = session;
+		directions[slot] = (byte) direction;
+		lengths[slot] = (short) Math.min(length, 0xffff);
+		System.arraycopy(buffer, offset, payloads, slot * MAX_PAYLOAD, Math.min(length, MAX_PAYLOAD));
+		// Hands the slot to the writer, the fields above are seen before the sequence
+		sequences.lazySet(slot, position + 1);
+		if((position & (mask >> 1)) == 0)
+		{
+			// Half the ring has been filled since, don't wait for the writer to wake up on its own
+			LockSupport.unpark(this);
+		}
+		return true;
+	}
+
+	public void run()
+	{
+		try
+		{
+			while(running)
+			{
+				if(drain() == 0)
+				{
+					// Nothing left, what's been gathered goes to the disk
+					flush();
+					LockSupport.parkNanos(this, FLUSH_INTERVAL);
+				}
+			}
+			// The last frames staged before close()
+			drain();
+			flush();
+		}
+		catch(IOException e)
+		{
+			// The disk is full or gone, keep what has been written so far
+			e.printStackTrace();
+			running = false;
+		}
+		try
+		{
+			outStream.close();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Moves the filled slots to the batch, writing it when full.
+	 * 
+	 * @return Number of frames moved
+	 */
+	private int drain() throws IOException
+	{
+		int count = 0;
+		while(true)
+		{
+			int slot = (int) head & mask;
+			if(sequences.get(slot) != head + 1)
+			{
+				// Empty, or a producer is still filling it
+				return count;
+			}
+
+			int stored = Math.min(lengths[slot] & 0xffff, MAX_PAYLOAD);
+			if(batch.remaining() < HEADER_LENGTH + stored)
+			{
+				flush();
+			}
+			batch.putLong(times[slot]);
+			batch.put(directions[slot]);
+			batch.putInt(sessions[slot]);
+			batch.putShort(lengths[slot]);
+			batch.putShort((short) stored);
+			batch.put(payloads, slot * MAX_PAYLOAD, stored);
+
+			// Free for the producers one lap later
+			sequences.lazySet(slot, head + sequences.length());
+			head++;
+			count++;
+		}
+	}
+
+	private void flush() throws IOException
+	{
+		if(batch.position() == 0)
+		{
+			return;
+		}
+		batch.flip();
+		while(batch.hasRemaining())
+		{
+			channel.write(batch);
+		}
+		batch.clear();
+		written = head;
+	}
+
+	/**
+	 * Ends the capture without waiting for the disk, so it can be called from
+	 * the UI thread: the capture thread writes the frames staged so far and
+	 * closes the file on its own. Frames added afterwards are not saved.
+	 */
+	public void close()
+	{
+		running = false;
+		LockSupport.unpark(this);
+	}
+
+	/**
+	 * @return Frames written to the file, including the session records
+	 */
+	public long getWritten()
+	{
+		return written;
+	}
+
+	/**
+	 * @return Frames that were not saved because the ring was full
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A transport is the link between the application and the device, it only has
+ * to provide a stream in each direction. The connection does the rest, so the
+ * same protocol runs over Bluetooth, a network socket or an in-process pipe.
+ */
+public interface Transport
+{
+	/**
+	 * Opens the link, this is a blocking call. It can be called again after
+	 * close() to open a new link to the same device.
+	 * 
+	 * @throws IOException
+	 *             When the link could not be opened or has been closed while
+	 *             opening
+	 */
+	void connect() throws IOException;
+
+	InputStream getInputStream() throws IOException;
+
+	OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Closes the link, any blocking call on it must return with an error.
+	 */
+	void close() throws IOException;
+
+	/**
+	 * @return Name of the device at the other end, for the user
+	 */
+	String getName();
+}
@@ -0,0 +1,177 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread that makes sure the communication is and stays alive. When nothing
+ * has been sent nor received for a while the listener is asked to send the
+ * keep-alive filler, so the filler is never sent while real commands flow.
+ * When something has been sent and no reply came within the reply timeout, or
+ * when nothing at all has been received for too long, the communication is
+ * deemed dead. The watchdog keeps running afterwards, the timeout is given
+ * again each time the delay passes without communication, until it's
+ * canceled.
+ * <p>
+ * The reply timeout can be changed at any time, the connection sets it from the
+ * measured round trip times so a dead link is noticed quickly on a fast link.
+ * <p>
+ * Instead of checking the time periodically the thread sleeps until the next
+ * deadline. Received data only moves the last communication time forward, so
+ * when the thread wakes up and finds that data arrived in the mean time it
+ * simply goes back to sleep until the new deadline. Sending the first thing
+ * after a reply wakes it, so it can sleep until the reply deadline. The monotonic clock is used
+ * so that changing the phone's time has no effect.
+ */
+public class Watchdog extends Thread
+{
+	public interface Listener
+	{
+		/**
+		 * Nothing has been sent nor received for the keep-alive interval.
+		 */
+		void onIdle();
+
+		/**
+		 * No reply came in time or nothing has been received for the longest
+		 * timeout, the communication is dead. Called again after each new
+		 * timeout delay without communication.
+		 */
+		void onTimeout();
+	}
+
+	private final Listener listener;
+	private final long keepAliveInterval, maxTimeout;
+	private volatile long replyTimeout;
+	private volatile long lastComm, lastSend;
+	// Time of the first thing sent after the last communication, a reply is awaited when it's after lastComm
+	private volatile long awaitingSince;
+	private volatile boolean running = true;
+
+	/**
+	 * Constructor. The time counting starts right away.
+	 * 
+	 * @param keepAliveMillis
+	 *            Time without communication before asking for the filler, must
+	 *            be smaller than the timeout
+	 * @param timeoutMillis
+	 *            Time without receiving anything after which the communication
+	 *            is deemed dead, also the reply timeout until it's set
+	 * @param watchdogListener
+	 *            Called from the watchdog thread when a deadline is reached
+	 */
+	public Watchdog(int keepAliveMillis, int timeoutMillis, Listener watchdogListener)
+	{
+		super("Watchdog");
+		keepAliveInterval = TimeUnit.MILLISECONDS.toNanos(keepAliveMillis);
+		maxTimeout = replyTimeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		listener = watchdogListener;
+		touch();
+		lastSend = awaitingSince = lastComm;
+	}
+
+	/**
+	 * Sets how long a reply is waited for once something has been sent. A new
+	 * value applies from the next deadline.
+	 */
+	public void setReplyTimeout(long millis)
+	{
+		replyTimeout = Math.min(maxTimeout, TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	/**
+	 * Updates the communication time, call it every time data is received. It
+	 * takes no lock so it can be called from the reading thread at any rate.
+	 */
+	public void touch()
+	{
+		lastComm = System.nanoTime();
+	}
+
+	/**
+	 * Updates the sending time, call it every time data is sent. Only one
+	 * thread may call it. The first thing sent after the last communication
+	 * wakes the thread so it sleeps until the reply deadline instead.
+	 */
+	public void sent()
+	{
+		long now = System.nanoTime();
+		lastSend = now;
+		if(awaitingSince - lastComm <= 0)
+		{
+			awaitingSince = now;
+			LockSupport.unpark(this);
+		}
+	}
+
+	public void run()
+	{
+		// Activity time for which the keep-alive has already been asked
+		long idleSince = lastComm - 1;
+
+		while(running)
+		{
+			long last = lastComm;
+			long sentAt = awaitingSince;
+			long now = System.nanoTime();
+			boolean awaiting = sentAt - last > 0;
+
+			// Communication timed out
+			if(now - last >= maxTimeout || (awaiting && now - sentAt >= replyTimeout))
+			{
+				listener.onTimeout();
+				// Count the next timeout from now, unless it was touched in the mean time
+				if(lastComm == last)
+				{
+					lastComm = now;
+				}
+				continue;
+			}
+
+			// Ask for the filler only once per silence, in both directions
+			long active = lastSend - last > 0 ? lastSend : last;
+			if(now - active >= keepAliveInterval && idleSince != active)
+			{
+				idleSince = active;
+				listener.onIdle();
+			}
+
+			// Sleep until whichever deadline comes next
+			long deadline = last + maxTimeout;
+			if(idleSince != active && active + keepAliveInterval - deadline < 0)
+			{
+				deadline = active + keepAliveInterval;
+			}
+			// Something sent meanwhile wakes the thread, sent() unparks it
+			if(awaiting && sentAt + replyTimeout - deadline < 0)
+			{
+				deadline = sentAt + replyTimeout;
+			}
+			LockSupport.parkNanos(this, deadline - now);
+		}
+	}
+
+	/**
+	 * Stops the thread without calling the listener.
+	 */
+	public void cancel()
+	{
+		running = false;
+		LockSupport.unpark(this);
+	}
+}
@@ -195,7 +195,7 @@ public class AccelerometerControl extends BluetoothActivity implements SensorEve
 		// Send data to robot
 		if(enabled)
 		{
-			write("s," + wheelLeft + "," + wheelRight);
+			writeSpeed(wheelLeft, wheelRight);
 		}
 		else
 		{
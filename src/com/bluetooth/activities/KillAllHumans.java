@@ -120,7 +120,7 @@ public class KillAllHumans extends BluetoothActivity implements SurfaceHolder.Ca
 				}
 				else
 				{
-					write("s,0,0");
+					writeSpeed(0, 0);
 					targets = 0;
 					setState(SLEEP);
 					bToggle.setText(R.string.start);
@@ -279,7 +279,7 @@ public class KillAllHumans extends BluetoothActivity implements SurfaceHolder.Ca
 						wheelLeft = maxSpeed + (int) control;
 						wheelRight = maxSpeed - (int) control;
 
-						write("s," + wheelLeft + "," + wheelRight);
+						writeSpeed(wheelLeft, wheelRight);
 						tvWheelLeft.setText("L: " + wheelLeft);
 						tvWheelRight.setText("R: " + wheelRight);
 					}
@@ -54,7 +54,8 @@ import android.widget.TextView;
  * <p>
  * Additional commands such as setting the black/while threshold and maximum
  * speed are available so that the application could be used in different light
- * conditions.
+ * conditions. The threshold can also be found automatically for each frame,
+ * following the light as it changes.
  * <p>
  * In the future developments of this activity one could imagine implementing
  * simulated annealing to find the optimal PID controller constants.
@@ -66,10 +67,14 @@ public class LineFollower extends BluetoothActivity implements SurfaceHolder.Cal
 	private SurfaceView svPreview, svOverlay;
 	private SurfaceHolder previewHolder, overlayHolder;
 	private TextView tvWheelLeft, tvWheelRight;
+	private SeekBar sbThreshold;
 	private Path path;
+	private VisionWorker worker;
 
 	private Boolean following = false;
 	private int maxSpeed, threshold = 60;
+	private boolean autoThreshold = false;
+	private boolean tracking = true;
 
 	private Dialog pidSettingsDialog;
 	private float pid_kp, pid_ki, pid_kd;
@@ -77,7 +82,12 @@ public class LineFollower extends BluetoothActivity implements SurfaceHolder.Cal
 	private float control, control_p, control_i, control_d;
 	private int wheelLeft, wheelRight, lastError;
 
-	private static byte[] previewData;
+	// Preview buffers rotated between the camera and the vision worker
+	private static final int PREVIEW_BUFFERS = 3;
+	// Only 1 pixel out of this many is looked at in both directions, lower is more precise but slower
+	private static final int UNDERSAMPLE = 8;
+	// Threads searching each frame, one per core
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState)
@@ -116,13 +126,17 @@ public class LineFollower extends BluetoothActivity implements SurfaceHolder.Cal
 			}
 		});
 
-		SeekBar sbThreshold = (SeekBar) findViewById(R.id.sbThreshold);
+		sbThreshold = (SeekBar) findViewById(R.id.sbThreshold);
 		sbThreshold.setProgress(threshold);
 		sbThreshold.setOnSeekBarChangeListener(new OnSeekBarChangeListener()
 		{
 			public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser)
 			{
-				path.setThreshold(progress);
+				// Not when showing the automatic threshold
+				if(fromUser)
+				{
+					path.setThreshold(progress);
+				}
 			}
 
 			public void onStartTrackingTouch(SeekBar arg0)
@@ -189,7 +203,7 @@ public class LineFollower extends BluetoothActivity implements SurfaceHolder.Cal
 			}
 		}
 
-		overlayHolder.setFixedSize(cameraSize.height / 8, cameraSize.width / 8);
+		overlayHolder.setFixedSize(cameraSize.height / UNDERSAMPLE, cameraSize.width / UNDERSAMPLE);
 
 		parameters.setPreviewSize(cameraSize.width, cameraSize.height);
 		parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
@@ -211,17 +225,23 @@ public class LineFollower extends BluetoothActivity implements SurfaceHolder.Cal
 		}
 
 		// Every frame send image data to path processing thread
-		path = new Path(cameraSize.width, cameraSize.height, svOverlay, new Handler(this));
+		path = new Path(cameraSize.width, cameraSize.height, UNDERSAMPLE, THREADS, svOverlay, new Handler(this));
+		path.setAutoThreshold(autoThreshold);
+		path.setTracking(tracking);
 
-		// Make only one buffer since we're going to work on a single image each time
-		previewData = new byte[cameraSize.width * cameraSize.height * ImageFormat.getBitsPerPixel(ImageFormat.YV12) / 8];
-		camera.addCallbackBuffer(previewData);
+		// The camera fills a buffer while the worker processes another one
+		int frameSize = cameraSize.width * cameraSize.height * ImageFormat.getBitsPerPixel(ImageFormat.YV12) / 8;
+		worker = new VisionWorker(camera, path, frameSize, PREVIEW_BUFFERS);
 
 		camera.setPreviewCallbackWithBuffer(this);
 	}
 
 	public void surfaceDestroyed(SurfaceHolder arg0)
 	{
+		// No buffer must be given back to the camera once released
+		worker.quit();
+		worker = null;
+		path.close();
 		camera.setPreviewCallback(null);
 		camera.stopPreview();
 		camera.release();
@@ -239,9 +259,6 @@ public class LineFollower extends BluetoothActivity implements SurfaceHolder.Cal
 		// Set the new speed using the data from PathThread
 		if(msg.what == BluetoothRemoteControlApp.MSG_1)
 		{
-			// The preview buffer is removed from the callback when used, put it back after processing
-			camera.addCallbackBuffer(previewData);
-
 			// msg.arg1: Deviation from center (error) normalized from -100 to 100
 			// msg.arg2: 1 if path has been found, 0 if not (stop)
 			if(msg.arg2 == 1)
@@ -264,10 +281,15 @@ public class LineFollower extends BluetoothActivity implements SurfaceHolder.Cal
 			
 			tvWheelLeft.setText("L: " + wheelLeft);
 			tvWheelRight.setText("R: " + wheelRight);
+
+			if(autoThreshold)
+			{
+				sbThreshold.setProgress(path.getThreshold());
+			}
 			
 			if(following)
 			{
-				write("s," + wheelLeft + "," + wheelRight);
+				writeSpeed(wheelLeft, wheelRight);
 			}
 		}
 		else if(msg.what == BluetoothRemoteControlApp.MSG_2)
@@ -297,6 +319,9 @@ public class LineFollower extends BluetoothActivity implements SurfaceHolder.Cal
 		// Add the settings icon in the ActionBar
 		MenuInflater inflater = getMenuInflater();
 		inflater.inflate(R.menu.settings, menu);
+		inflater.inflate(R.menu.threshold, menu);
+		menu.findItem(R.id.iAutoThreshold).setChecked(autoThreshold);
+		menu.findItem(R.id.iTracking).setChecked(tracking);
 		return super.onCreateOptionsMenu(menu);
 	}
 
@@ -308,19 +333,32 @@ public class LineFollower extends BluetoothActivity implements SurfaceHolder.Cal
 		{
 			pidSettingsDialog.show();
 		}
+		else if(item.getItemId() == R.id.iAutoThreshold)
+		{
+			// The bar shows the threshold found, it can't be moved meanwhile
+			autoThreshold = !item.isChecked();
+			item.setChecked(autoThreshold);
+			sbThreshold.setEnabled(!autoThreshold);
+			if(path != null)
+			{
+				path.setAutoThreshold(autoThreshold);
+			}
+		}
+		else if(item.getItemId() == R.id.iTracking)
+		{
+			tracking = !item.isChecked();
+			item.setChecked(tracking);
+			if(path != null)
+			{
+				path.setTracking(tracking);
+			}
+		}
 		return super.onOptionsItemSelected(item);
 	}
 
-	public void onPreviewFrame(final byte[] data, Camera camera)
+	public void onPreviewFrame(byte[] data, Camera camera)
 	{
-		// Process image in another thread to free the UI
-		Runnable process = new Runnable()
-		{
-			public void run()
-			{
-				path.processFrame(previewData);
-			}
-		};
-		process.run();
+		// Process image in another thread to free the UI, the buffer goes back to the camera once done
+		worker.submit(data);
 	}
 }
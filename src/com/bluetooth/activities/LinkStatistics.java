@@ -0,0 +1,174 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth.activities;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import com.bluetooth.BluetoothActivity;
+import com.bluetooth.BluetoothRemoteControlApp;
+import com.bluetooth.LatencyHistogram;
+import com.bluetooth.LatencyStats;
+import com.bluetooth.R;
+import com.bluetooth.TrafficCapture;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * This activity shows the round trip time of the commands, from the moment they
+ * are sent to the moment the robot replies, for the current connection and for
+ * all the connections since the application started. The table is refreshed
+ * every second.
+ * <p>
+ * The capture button saves every frame of the links to a file in the
+ * application's folder of the external storage, to be looked at on a computer
+ * with CaptureConverter.
+ */
+public class LinkStatistics extends BluetoothActivity
+{
+	private static final int REFRESH_INTERVAL = 1000;
+
+	private TextView tvSession, tvAll;
+	private BluetoothRemoteControlApp app;
+	private final Handler handler = new Handler();
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+	private final Runnable refresh = new Runnable()
+	{
+		public void run()
+		{
+			LatencyStats session = app.getSessionStats();
+
+			// All sessions are the past ones and the current one put together
+			LatencyStats all = new LatencyStats();
+			all.add(app.getPastStats());
+			if(session != null)
+			{
+				all.add(session);
+				tvSession.setText(format(session));
+			}
+			String text = format(all);
+			TrafficCapture capture = app.getCapture();
+			if(capture != null)
+			{
+				text += "\nCaptured: " + capture.getWritten() + ", dropped: " + capture.getDropped();
+			}
+			tvAll.setText(text);
+
+			handler.postDelayed(this, REFRESH_INTERVAL);
+		}
+	};
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState)
+	{
+		super.onCreate(savedInstanceState);
+		this.setContentView(R.layout.link_statistics);
+
+		app = (BluetoothRemoteControlApp) getApplicationContext();
+		tvSession = (TextView) findViewById(R.id.tvSession);
+		tvAll = (TextView) findViewById(R.id.tvAll);
+	}
+
+	@Override
+	protected void onResume()
+	{
+		handler.post(refresh);
+		super.onResume();
+	}
+
+	@Override
+	protected void onPause()
+	{
+		handler.removeCallbacks(refresh);
+		super.onPause();
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu)
+	{
+		// Add the capture button in the ActionBar
+		MenuInflater inflater = getMenuInflater();
+		inflater.inflate(R.menu.capture, menu);
+		menu.findItem(R.id.iCapture).setTitle(app.getCapture() != null ? R.string.stopCapture : R.string.capture);
+		return super.onCreateOptionsMenu(menu);
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item)
+	{
+		if(item.getItemId() == R.id.iCapture)
+		{
+			if(app.getCapture() != null)
+			{
+				app.stopCapture();
+				item.setTitle(R.string.capture);
+			}
+			else
+			{
+				// The external storage can be read from a computer, the internal one is the fallback
+				File folder = getExternalFilesDir(null);
+				File file = new File(folder != null ? folder : getFilesDir(), "capture-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".bin");
+				try
+				{
+					app.startCapture(file);
+					item.setTitle(R.string.stopCapture);
+					Toast.makeText(this, "Capturing to " + file.getPath(), Toast.LENGTH_SHORT).show();
+				}
+				catch(IOException e)
+				{
+					Toast.makeText(this, "Could not capture", Toast.LENGTH_SHORT).show();
+				}
+			}
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
+	/**
+	 * Builds the table of the latencies in milliseconds, one row per command
+	 * type and one for all of them.
+	 */
+	private String format(LatencyStats stats)
+	{
+		StringBuilder table = new StringBuilder();
+		table.append(String.format("%-10s %6s %7s %7s %7s\n", "", "Count", "p50", "p99", "Max"));
+		for(int type = 0; type < LatencyStats.TYPES; type++)
+		{
+			stats.copy(type, histogram);
+			appendRow(table, LatencyStats.getName(type), histogram);
+		}
+		stats.copyAll(histogram);
+		appendRow(table, "All", histogram);
+		table.append("Sent again: ").append(stats.getRetransmissions());
+		table.append(", lost: ").append(stats.getLosses());
+		table.append(", unmatched: ").append(stats.getUnmatched());
+		return table.toString();
+	}
+
+	private static void appendRow(StringBuilder table, String name, LatencyHistogram histogram)
+	{
+		table.append(String.format("%-10s %6d %7.1f %7.1f %7.1f\n", name, histogram.getCount(), histogram.getPercentile(50) / 1000f, histogram.getPercentile(99) / 1000f, histogram.getMax() / 1000f));
+	}
+}
@@ -0,0 +1,244 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth.activities;
+
+import com.bluetooth.BluetoothActivity;
+import com.bluetooth.BluetoothRemoteControlApp;
+import com.bluetooth.CommandQueue;
+import com.bluetooth.Connection;
+import com.bluetooth.ConnectionManager;
+import com.bluetooth.R;
+import com.bluetooth.TelemetryBuffer;
+import com.bluetooth.TelemetryDecoder;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.widget.Button;
+import android.widget.SeekBar;
+import android.widget.SeekBar.OnSeekBarChangeListener;
+import android.widget.TextView;
+
+/**
+ * This activity uses the robot's ADC as a small oscilloscope. The "a,pin"
+ * command makes the robot send the readings of a pin as fast as it can until it
+ * receives something else, the readings go from the connection straight to a
+ * telemetry buffer that the view draws from. The command is sent again twice
+ * per second, so the robot's watchdog does not end the stream.
+ * <p>
+ * With several robots connected, the first one is used.
+ */
+public class Oscilloscope extends BluetoothActivity
+{
+	// Samples across the screen for each position of the time base bar
+	private static final int[] TIME_BASES = { 64, 128, 256, 512, 1024, 2048, 4096, 8192 };
+	// The robot stops streaming after a second without receiving anything, the stream is started again well before
+	private static final int RESTART_INTERVAL = 500;
+
+	private OscilloscopeView svScope;
+	private TextView tvTrigger, tvTimeBase, tvPin;
+	private ConnectionManager manager;
+	private Connection connection;
+	// Holds a few seconds of samples, the view copies them out 30 times per second
+	private final TelemetryBuffer buffer = new TelemetryBuffer(1, 32768);
+	private final TelemetryDecoder decoder = new TelemetryDecoder(buffer);
+	private boolean streaming, paused;
+	private int pin;
+	private final Handler handler = new Handler();
+
+	private final Runnable restart = new Runnable()
+	{
+		public void run()
+		{
+			// Also keeps the connection from sending the filler, that would end the stream
+			writeToScope("a," + pin);
+			handler.postDelayed(this, RESTART_INTERVAL);
+		}
+	};
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState)
+	{
+		super.onCreate(savedInstanceState);
+		this.setContentView(R.layout.oscilloscope);
+
+		manager = ((BluetoothRemoteControlApp) getApplicationContext()).getConnectionManager();
+
+		svScope = (OscilloscopeView) findViewById(R.id.svScope);
+		svScope.setBuffer(buffer);
+
+		tvTrigger = (TextView) findViewById(R.id.tvTrigger);
+		SeekBar sbTrigger = (SeekBar) findViewById(R.id.sbTrigger);
+		sbTrigger.setOnSeekBarChangeListener(new OnSeekBarChangeListener()
+		{
+			public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser)
+			{
+				// All the way to the left turns the trigger off
+				svScope.setTriggerLevel(progress - 1);
+				tvTrigger.setText(progress == 0 ? "Trigger: off" : "Trigger: " + (progress - 1));
+			}
+
+			public void onStartTrackingTouch(SeekBar arg0)
+			{
+
+			}
+
+			public void onStopTrackingTouch(SeekBar arg0)
+			{
+
+			}
+		});
+
+		tvTimeBase = (TextView) findViewById(R.id.tvTimeBase);
+		SeekBar sbTimeBase = (SeekBar) findViewById(R.id.sbTimeBase);
+		sbTimeBase.setOnSeekBarChangeListener(new OnSeekBarChangeListener()
+		{
+			public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser)
+			{
+				svScope.setTimeBase(TIME_BASES[progress]);
+				tvTimeBase.setText(TIME_BASES[progress] + " samples");
+			}
+
+			public void onStartTrackingTouch(SeekBar arg0)
+			{
+
+			}
+
+			public void onStopTrackingTouch(SeekBar arg0)
+			{
+
+			}
+		});
+		sbTimeBase.setProgress(3);
+
+		tvPin = (TextView) findViewById(R.id.tvPin);
+		SeekBar sbPin = (SeekBar) findViewById(R.id.sbPin);
+		sbPin.setOnSeekBarChangeListener(new OnSeekBarChangeListener()
+		{
+			public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser)
+			{
+				pin = progress;
+				tvPin.setText("Pin: " + pin);
+			}
+
+			public void onStartTrackingTouch(SeekBar arg0)
+			{
+
+			}
+
+			public void onStopTrackingTouch(SeekBar arg0)
+			{
+				// Start over on the new pin
+				if(streaming)
+				{
+					startStream();
+				}
+			}
+		});
+
+		final Button bPause = (Button) findViewById(R.id.bPause);
+		bPause.setOnClickListener(new OnClickListener()
+		{
+			public void onClick(View arg0)
+			{
+				paused = !paused;
+				svScope.setPaused(paused);
+				bPause.setText(paused ? R.string.resume : R.string.pause);
+			}
+		});
+
+		final Button bToggle = (Button) findViewById(R.id.bToggle);
+		bToggle.setOnClickListener(new OnClickListener()
+		{
+			public void onClick(View arg0)
+			{
+				streaming = !streaming;
+				if(streaming)
+				{
+					bToggle.setText(R.string.stop);
+					startStream();
+				}
+				else
+				{
+					bToggle.setText(R.string.start);
+					stopStream();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts streaming the current pin, the command is sent again until the
+	 * stream is stopped.
+	 */
+	private void startStream()
+	{
+		handler.removeCallbacks(restart);
+		handler.post(restart);
+	}
+
+	private void stopStream()
+	{
+		handler.removeCallbacks(restart);
+		// Anything the robot receives ends the stream, the filler does nothing else
+		writeToScope(CommandQueue.FILLER);
+	}
+
+	/**
+	 * Sends a command to the robot the readings come from only.
+	 */
+	private void writeToScope(String command)
+	{
+		String id = connection == null ? null : manager.getId(connection);
+		if(id != null)
+		{
+			manager.write(id, command);
+		}
+	}
+
+	@Override
+	protected void onResume()
+	{
+		Connection[] connections = manager.getConnections();
+		if(connections.length > 0)
+		{
+			connection = connections[0];
+			connection.setTelemetryDecoder(decoder);
+			if(streaming)
+			{
+				startStream();
+			}
+		}
+		svScope.onResumeView();
+		super.onResume();
+	}
+
+	@Override
+	protected void onPause()
+	{
+		svScope.onPauseView();
+		if(connection != null)
+		{
+			if(streaming)
+			{
+				stopStream();
+			}
+			connection.setTelemetryDecoder(null);
+		}
+		super.onPause();
+	}
+}
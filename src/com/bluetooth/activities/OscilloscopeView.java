@@ -0,0 +1,325 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth.activities;
+
+import com.bluetooth.TelemetryBuffer;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+/**
+ * This view draws the samples of a telemetry buffer as an oscilloscope trace,
+ * from its own thread. Each frame the new samples are copied into a capture
+ * buffer of fixed size, then every pixel column of the screen is drawn as a
+ * single vertical line from the smallest to the largest sample it covers. The
+ * drawing costs the same whatever the number of samples on screen and all the
+ * arrays are made once.
+ * <p>
+ * With the trigger on, the trace starts where the signal last went up through
+ * the trigger level so a periodic signal stands still on the screen. When the
+ * signal never crosses the level the latest samples are shown.
+ */
+public class OscilloscopeView extends SurfaceView implements Runnable
+{
+	// ADC readings go from 0 to 1023
+	private static final int FULL_SCALE = 1024;
+	// Samples kept by the view, twice the largest time base so a trigger can be looked for over a whole screen
+	private static final int CAPTURE_SIZE = 16384;
+	public static final int MAX_TIME_BASE = CAPTURE_SIZE / 2;
+	// Part of the screen shown before the trigger
+	private static final int PRE_TRIGGER = 8;
+	private static final int GRID_DIVISIONS = 8;
+
+	private Thread thread = null;
+	private SurfaceHolder surfaceHolder;
+	private volatile boolean running = false;
+
+	private volatile TelemetryBuffer buffer;
+	private volatile int timeBase = 512;
+	// Trigger level, -1 when the trigger is off
+	private volatile int triggerLevel = -1;
+	private volatile boolean paused;
+
+	// Only used by the drawing thread
+	private final int[] capture = new int[CAPTURE_SIZE];
+	private final int[] chunk = new int[1024];
+	private long captured, readPosition;
+	private long dropped;
+	private float[] lines = new float[0];
+	private final Paint tracePaint = new Paint(), gridPaint = new Paint(), triggerPaint = new Paint(), textPaint = new Paint();
+	// Sample rate shown on screen, updated every second
+	private String rate = "";
+	private long rateTime, rateCount;
+
+	public OscilloscopeView(Context context)
+	{
+		super(context);
+		surfaceHolder = getHolder();
+	}
+
+	public OscilloscopeView(Context context, AttributeSet attributeSet)
+	{
+		super(context, attributeSet);
+		surfaceHolder = getHolder();
+	}
+
+	public OscilloscopeView(Context context, AttributeSet attributeSet, int defStyle)
+	{
+		super(context, attributeSet, defStyle);
+		surfaceHolder = getHolder();
+	}
+
+	/**
+	 * Sets the buffer the samples are taken from, only its first channel is
+	 * shown.
+	 */
+	public void setBuffer(TelemetryBuffer telemetryBuffer)
+	{
+		buffer = telemetryBuffer;
+	}
+
+	/**
+	 * @param samples
+	 *            Number of samples across the screen, up to MAX_TIME_BASE
+	 */
+	public void setTimeBase(int samples)
+	{
+		timeBase = Math.max(2, Math.min(MAX_TIME_BASE, samples));
+	}
+
+	/**
+	 * @param level
+	 *            ADC value the signal has to go up through, -1 to turn the
+	 *            trigger off
+	 */
+	public void setTriggerLevel(int level)
+	{
+		triggerLevel = level;
+	}
+
+	/**
+	 * Freezes the trace, the samples received meanwhile are skipped.
+	 */
+	public void setPaused(boolean pause)
+	{
+		paused = pause;
+	}
+
+	public void onResumeView()
+	{
+		running = true;
+		thread = new Thread(this);
+		thread.start();
+	}
+
+	public void onPauseView()
+	{
+		boolean retry = true;
+		running = false;
+		while(retry)
+		{
+			try
+			{
+				thread.join();
+				retry = false;
+			}
+			catch(InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void run()
+	{
+		tracePaint.setColor(0xff33ff33);
+		tracePaint.setStrokeWidth(1);
+		gridPaint.setColor(0xff333333);
+		triggerPaint.setColor(0xffffaa00);
+		textPaint.setColor(Color.WHITE);
+		textPaint.setTextSize(24);
+
+		while(running)
+		{
+			TelemetryBuffer current = buffer;
+			if(current != null)
+			{
+				if(paused)
+				{
+					// Skip what arrives while paused, the trace starts from the new samples when resumed
+					readPosition = current.getWritten();
+				}
+				else
+				{
+					copySamples(current);
+				}
+			}
+
+			if(surfaceHolder.getSurface().isValid())
+			{
+				Canvas canvas = surfaceHolder.lockCanvas();
+				if(canvas != null)
+				{
+					draw(canvas);
+					surfaceHolder.unlockCanvasAndPost(canvas);
+				}
+			}
+
+			try
+			{
+				// 1/33ms = 30Hz, all the samples that arrived meanwhile are drawn at once
+				Thread.sleep(33);
+			}
+			catch(InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Copies the samples that arrived since the last frame into the capture
+	 * buffer.
+	 */
+	private void copySamples(TelemetryBuffer current)
+	{
+		while(true)
+		{
+			int count = current.read(readPosition, 0, chunk, null, chunk.length);
+			if(count < 0)
+			{
+				// Fell behind, the samples in between are lost
+				long oldest = current.getOldest();
+				dropped += oldest - readPosition;
+				readPosition = oldest;
+				continue;
+			}
+			if(count == 0)
+			{
+				break;
+			}
+			for(int i = 0; i < count; i++)
+			{
+				capture[(int) (captured++ & (CAPTURE_SIZE - 1))] = chunk[i];
+			}
+			readPosition += count;
+			rateCount += count;
+		}
+
+		long now = System.currentTimeMillis();
+		if(now - rateTime >= 1000)
+		{
+			rate = (rateCount * 1000 / Math.max(1, now - rateTime)) + " samples/s" + (dropped > 0 ? ", " + dropped + " dropped" : "");
+			rateTime = now;
+			rateCount = 0;
+		}
+	}
+
+	/**
+	 * @return Position in the capture buffer of the first sample to show
+	 */
+	private long findStart(int window)
+	{
+		long latest = captured - window;
+		int level = triggerLevel;
+		if(level >= 0)
+		{
+			// Latest rising edge that still has a whole screen of samples after it
+			long trigger = latest + window / PRE_TRIGGER;
+			long limit = Math.max(window / PRE_TRIGGER, latest - window + window / PRE_TRIGGER);
+			for(; trigger > limit; trigger--)
+			{
+				if(capture[(int) ((trigger - 1) & (CAPTURE_SIZE - 1))] < level && capture[(int) (trigger & (CAPTURE_SIZE - 1))] >= level)
+				{
+					return trigger - window / PRE_TRIGGER;
+				}
+			}
+		}
+		return latest;
+	}
+
+	/**
+	 * Draws the grid, the trigger level and the trace, one line per pixel
+	 * column from the smallest to the largest of its samples.
+	 */
+	private void draw(Canvas canvas)
+	{
+		int width = canvas.getWidth();
+		int height = canvas.getHeight();
+		canvas.drawColor(Color.BLACK);
+
+		for(int i = 1; i < GRID_DIVISIONS; i++)
+		{
+			canvas.drawLine(width * i / GRID_DIVISIONS, 0, width * i / GRID_DIVISIONS, height, gridPaint);
+			canvas.drawLine(0, height * i / GRID_DIVISIONS, width, height * i / GRID_DIVISIONS, gridPaint);
+		}
+		int level = triggerLevel;
+		if(level >= 0)
+		{
+			canvas.drawLine(0, toY(level, height), width, toY(level, height), triggerPaint);
+		}
+
+		int window = timeBase;
+		if(captured >= window)
+		{
+			if(lines.length < width * 4)
+			{
+				lines = new float[width * 4];
+			}
+
+			long start = findStart(window);
+			// Starting from the last sample of the previous column joins the columns together
+			int previous = capture[(int) (start & (CAPTURE_SIZE - 1))];
+			for(int x = 0; x < width; x++)
+			{
+				long from = start + (long) x * window / width;
+				long to = Math.max(from + 1, start + (long) (x + 1) * window / width);
+				int min = previous, max = previous;
+				for(long i = from; i < to; i++)
+				{
+					int value = capture[(int) (i & (CAPTURE_SIZE - 1))];
+					if(value < min)
+					{
+						min = value;
+					}
+					if(value > max)
+					{
+						max = value;
+					}
+					previous = value;
+				}
+				lines[x * 4] = x;
+				lines[x * 4 + 1] = toY(min, height);
+				lines[x * 4 + 2] = x;
+				// A flat column is still one pixel high
+				lines[x * 4 + 3] = toY(max, height) - 1;
+			}
+			canvas.drawLines(lines, 0, width * 4, tracePaint);
+		}
+
+		canvas.drawText(rate, 10, 30, textPaint);
+	}
+
+	private static float toY(int value, int height)
+	{
+		return height - 1 - (float) value * (height - 1) / FULL_SCALE;
+	}
+}
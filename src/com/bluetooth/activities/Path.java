@@ -15,6 +15,12 @@
 
 package com.bluetooth.activities;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
 import com.bluetooth.BluetoothRemoteControlApp;
 
 import android.graphics.Canvas;
@@ -29,25 +35,156 @@ import android.view.SurfaceView;
 /**
  * This class takes in the YU12 format camera preview data and processes it to
  * find the line and calculate the optimal path. It sends by the error back via
- * a handler.
+ * a handler. The frames are processed by the VisionWorker thread.
+ * <p>
+ * The line is searched first, the points to show are only noted in arrays. The
+ * error is sent as soon as the search is done, the overlay is then drawn from
+ * the arrays with one call per color and no more than 15 times per second, so
+ * how dark the image is does not delay the controller.
+ * <p>
+ * The columns of the preview (the lines of the screen) are searched in blocks.
+ * With more than one thread the blocks are shared between the vision worker
+ * and a fixed pool of threads, each thread taking the next block from the
+ * bottom of the screen. The results are put together in order afterwards so
+ * the error is the same as with a single thread.
+ * <p>
+ * The line hardly moves from one frame to the next, so when tracking is on
+ * each block remembers the rows the line took in the last frame and only those
+ * rows and a margin around them are read. When a column of the block has no pixel under the
+ * threshold in these rows, or the line reaches their edge, the line moved more
+ * than the margin: the margin is doubled and the block searched again, up to
+ * the whole height. Once the line is lost every block is searched whole.
+ * <p>
+ * In the automatic mode the threshold follows the light: the pixels read are
+ * also counted in a histogram of their brightness, the value separating the
+ * dark pixels from the light ones best (Otsu's method) is worked out after
+ * each frame and the threshold slowly moves towards it.
  */
 class Path
 {
+	// Time between two overlay drawings
+	private static final long OVERLAY_INTERVAL = TimeUnit.MILLISECONDS.toNanos(66);
+	// Columns searched together, each row of a block is read from a few cache lines
+	private static final int BLOCK = 16;
+	// Rows of the grid searched above and below where the line was in the last frame
+	private static final int TRACK_MARGIN = 4;
+	// Levels of brightness in the histogram, 4 values of a pixel each
+	private static final int LEVEL_SHIFT = 2;
+	private static final int LEVELS = 256 >> LEVEL_SHIFT;
+	// The dark and light pixels must be at least this far apart for a new automatic threshold
+	private static final int MIN_CONTRAST = 40;
+
 	private final Handler parentHandler;
-	private final int width, height, undersample = 8;
+	// Size of the grid of pixels looked at, 1 pixel out of undersample in both directions
+	private final int width, height, undersample;
 	private final SurfaceHolder holder;
-	private Canvas overlayCanvas;
-	private int x, y, rx, startPixel, finishPixel, threshold, error, avgerage, pathFound;
+	private int error, pathFound;
+	// Position in the preview data of each row of the grid
+	private final int[] rowOffsets;
+	// First and last row under the threshold of each column, -1 when there's none
+	private final int[] startPixels, finishPixels;
+	// Points to draw as x, y pairs: the pixels under the threshold and the middle of the line
+	private final float[] darkPoints, pathPoints;
+	private int darkCount, pathCount;
+	// Number of blocks, room each block has in darkPoints and where each one's points end
+	private final int blocks, blockPoints;
+	private final int[] blockCounts;
+	// Rows of the grid the line took in each block in the last frame, -1 to search the block whole
+	private final int[] blockTop, blockBottom;
+	// Brightness of the pixels read in each block and the frame each one was counted in
+	private final int[] blockHistograms, blockFrames;
+	private final int[] histogram = new int[LEVELS];
+
+	// Search of the current frame, shared with the threads of the pool
+	private final ExecutorService pool;
+	private final int helpers;
+	private volatile byte[] frameData;
+	private volatile int limit;
+	// Threads of the pool still searching, the last one to finish wakes up the waiter
+	private final AtomicInteger searching = new AtomicInteger();
+	private volatile Thread waiter;
+	private volatile int frame;
+	// The pixels are only counted in the histograms in the automatic mode
+	private volatile boolean counting;
+	private final AtomicInteger nextBlock = new AtomicInteger();
+	// Highest column without any pixel under the threshold found so far, 0 when none
+	private final AtomicInteger lineEnd = new AtomicInteger();
+	private final Runnable scanner = new Runnable()
+	{
+		public void run()
+		{
+			try
+			{
+				scanBlocks();
+			}
+			finally
+			{
+				if(searching.decrementAndGet() == 0)
+				{
+					LockSupport.unpark(waiter);
+				}
+			}
+		}
+	};
+	private long lastOverlay;
+	// Set from the UI thread and used by the vision worker, which sets it itself in the automatic mode
+	private volatile int threshold;
+	private volatile boolean autoThreshold;
+	// Set from the UI thread, the blocks are searched whole when off
+	private volatile boolean tracking;
+	// Limit of the automatic mode in 8.8 fixed point so it can move slowly, 0 when off
+	private int autoLimit;
 
 	final private Paint red, blue, yellow;
 
-	public Path(int canvasWidth, int canvasHeight, SurfaceView canvasView, Handler callbackHandler)
+	/**
+	 * Constructor.
+	 * 
+	 * @param canvasWidth
+	 *            Width of the camera preview
+	 * @param canvasHeight
+	 *            Height of the camera preview
+	 * @param undersampling
+	 *            Only 1 pixel out of this many is looked at in both directions,
+	 *            the overlay is this many times smaller than the preview
+	 * @param threads
+	 *            Threads searching each frame, the vision worker included: 1
+	 *            to search it alone
+	 */
+	public Path(int canvasWidth, int canvasHeight, int undersampling, int threads, SurfaceView canvasView, Handler callbackHandler)
 	{
 		parentHandler = callbackHandler;
+		undersample = undersampling;
 		width = canvasWidth / undersample;
 		height = canvasHeight / undersample;
 		holder = canvasView.getHolder();
 		threshold = 60;
+		// Column 0 is never searched
+		blocks = (width - 1 + BLOCK - 1) / BLOCK;
+		blockPoints = 2 * BLOCK * height;
+		blockCounts = new int[blocks];
+		blockTop = new int[blocks];
+		blockBottom = new int[blocks];
+		for(int block = 0; block < blocks; block++)
+		{
+			blockTop[block] = -1;
+		}
+		blockHistograms = new int[blocks * LEVELS];
+		blockFrames = new int[blocks];
+		darkPoints = new float[blocks * blockPoints];
+		pathPoints = new float[2 * width];
+
+		helpers = Math.max(0, threads - 1);
+		pool = helpers > 0 ? Executors.newFixedThreadPool(helpers) : null;
+
+		// The offsets only depend on the preview size, they are worked out once
+		rowOffsets = new int[height];
+		for(int x = 0; x < height; x++)
+		{
+			rowOffsets[x] = x * undersample * canvasWidth;
+		}
+		startPixels = new int[width];
+		finishPixels = new int[width];
 
 		// ICS base colors
 		yellow = new Paint();
@@ -72,68 +209,431 @@ class Path
 		threshold = newValue;
 	}
 
-	public void processFrame(byte[] data)
+	/**
+	 * @return Threshold in use, the one found when in the automatic mode
+	 */
+	public int getThreshold()
 	{
-		overlayCanvas = holder.lockCanvas();
-		overlayCanvas.drawColor(0, Mode.CLEAR);
+		return threshold;
+	}
 
+	/**
+	 * Turns the automatic threshold on or off, it starts from the current
+	 * threshold and the last one found stays when turned off.
+	 */
+	public void setAutoThreshold(boolean enabled)
+	{
+		autoThreshold = enabled;
+	}
+
+	/**
+	 * Turns the tracking of the line on or off. When on only the rows around
+	 * where the line was in the last frame are read, a line that moves a lot
+	 * between two frames takes longer to find and a dark spot away from the
+	 * line is not drawn.
+	 */
+	public void setTracking(boolean enabled)
+	{
+		tracking = enabled;
+	}
+
+	public void processFrame(byte[] data)
+	{
 		// If this is still 0 by the end of the search the value cannot be used
 		pathFound = 0;
+		pathCount = 0;
 
-		// Threshold the camera preview based on the set threshold value
-		for(y = width - 1; y > 0; y--)
+		frameData = data;
+		frame++;
+		if(!tracking)
+		{
+			// Nothing is known of the last frame, every block is searched whole
+			for(int block = 0; block < blocks; block++)
+			{
+				blockTop[block] = -1;
+			}
+		}
+		boolean automatic = autoThreshold;
+		if(!automatic)
 		{
-			startPixel = -1;
-			finishPixel = height + 1;
+			autoLimit = 0;
+		}
+		else if(autoLimit == 0)
+		{
+			autoLimit = (threshold + 16) << 8;
+		}
+		// Same as value - 16 < threshold
+		limit = automatic ? autoLimit >> 8 : threshold + 16;
+		counting = automatic;
+		nextBlock.set(0);
+		lineEnd.set(0);
+		if(pool != null)
+		{
+			// The same counter for every frame, nothing is made to wait for the threads
+			waiter = Thread.currentThread();
+			searching.set(helpers);
+			for(int i = 0; i < helpers; i++)
+			{
+				pool.execute(scanner);
+			}
+		}
+		// This thread searches too, alone when there's no pool
+		scanBlocks();
+		if(pool != null)
+		{
+			while(searching.get() > 0)
+			{
+				LockSupport.park(this);
+			}
+		}
+		frameData = null;
 
-			// From left to right and right to left at the same time
-			for(x = 0, rx = height - 1; x < height; x++, rx--)
+		// The line ends at the first column without any pixel under the threshold
+		int end = lineEnd.get();
+		darkCount = 0;
+		for(int block = 0; block < blocks; block++)
+		{
+			int blockEnd = width - 1 - block * BLOCK;
+			if(blockEnd <= end)
+			{
+				break;
+			}
+			int from = block * blockPoints;
+			if(Math.max(1, blockEnd - BLOCK + 1) > end)
 			{
-				// Right to left: find the first pixel that is under the threshold and mark it as start
-				if((0xff & ((int) data[x * undersample * width * undersample + y * undersample])) - 16 < threshold)
+				// The whole block comes before the end
+				int count = blockCounts[block] - from;
+				System.arraycopy(darkPoints, from, darkPoints, darkCount, count);
+				darkCount += count;
+			}
+			else
+			{
+				// Only keep the points of this block that come before the end
+				for(int point = from; point < blockCounts[block]; point += 2)
 				{
-					if(startPixel == -1)
+					if(darkPoints[point + 1] > end)
 					{
-						startPixel = x;
+						darkPoints[darkCount++] = darkPoints[point];
+						darkPoints[darkCount++] = darkPoints[point + 1];
 					}
-					// Draw all the pixels under the threshold
-					overlayCanvas.drawPoint(height - x, y, yellow);
 				}
+			}
+		}
+		// Nothing is known of the blocks after the end, the next frame searches them whole
+		for(int block = 0; block < blocks; block++)
+		{
+			if(width - 1 - block * BLOCK <= end)
+			{
+				blockTop[block] = -1;
+			}
+		}
+
+		for(int y = width - 1; y > end; y--)
+		{
+			// Take average of start and finish pixel position
+			int average = height - (startPixels[y] + finishPixels[y]) / 2;
+
+			// Draw path pixels for the fun of it
+			pathPoints[pathCount++] = average;
+			pathPoints[pathCount++] = y;
+
+			// Use the first pixel row for the error calculation
+			if(y == width - 2)
+			{
+				error = (int) (100 * (2 * (float) average / height - 1));
+				pathFound = 1;
+			}
+		}
+		if(pathFound == 0)
+		{
+			// The line is lost, it's searched over the whole image next time
+			for(int block = 0; block < blocks; block++)
+			{
+				blockTop[block] = -1;
+			}
+		}
+
+		if(automatic)
+		{
+			updateThreshold(end);
+		}
+
+		// Send the error (the value we want) back to parent with a reclaimed message and also if the value is usable
+		Message.obtain(parentHandler, BluetoothRemoteControlApp.MSG_1, error, pathFound).sendToTarget();
+
+		// The overlay is only for the user, it does not need every frame
+		long now = System.nanoTime();
+		if(now - lastOverlay >= OVERLAY_INTERVAL)
+		{
+			lastOverlay = now;
+			drawOverlay();
+		}
+	}
+
+	/**
+	 * Searches the blocks of columns one after the other, starting from the
+	 * bottom of the screen, until there are none left or the line has ended
+	 * before the next one. Called by every thread searching the frame.
+	 */
+	private void scanBlocks()
+	{
+		byte[] data = frameData;
+		int block;
+		while((block = nextBlock.getAndIncrement()) < blocks)
+		{
+			int blockEnd = width - 1 - block * BLOCK;
+			if(blockEnd <= lineEnd.get())
+			{
+				// The line ends before this block, and before all the ones that are left
+				return;
+			}
+			scanBlock(data, block, Math.max(1, blockEnd - BLOCK + 1), blockEnd);
+		}
+	}
+
+	/**
+	 * Thresholds a block of columns. The columns of a block are only touched
+	 * by the thread searching it and its points go to a part of darkPoints of
+	 * its own, so the threads don't share anything while searching.
+	 */
+	private void scanBlock(byte[] data, int block, int blockStart, int blockEnd)
+	{
+		// Around the line of the last frame when it's known, else the whole height
+		int margin = TRACK_MARGIN;
+		int top = 0, bottom = height - 1;
+		if(blockTop[block] >= 0)
+		{
+			top = Math.max(0, blockTop[block] - margin);
+			bottom = Math.min(height - 1, blockBottom[block] + margin);
+		}
+		scanRows(data, block, blockStart, blockEnd, top, bottom);
+		while((top > 0 || bottom < height - 1) && isCut(blockStart, blockEnd, top, bottom))
+		{
+			// The line moved more than the margin, look further
+			margin *= 2;
+			top = Math.max(0, blockTop[block] - margin);
+			bottom = Math.min(height - 1, blockBottom[block] + margin);
+			scanRows(data, block, blockStart, blockEnd, top, bottom);
+		}
+
+		// Where the line is in this block, for the next frame
+		int lineTop = height, lineBottom = -1;
+		for(int y = blockStart; y <= blockEnd; y++)
+		{
+			if(startPixels[y] >= 0)
+			{
+				lineTop = Math.min(lineTop, startPixels[y]);
+				lineBottom = Math.max(lineBottom, finishPixels[y]);
+			}
+		}
+		blockTop[block] = lineBottom < 0 ? -1 : lineTop;
+		blockBottom[block] = lineBottom;
+
+		// Tell the other threads when the line ends in this block, the blocks past it are not needed
+		for(int y = blockEnd; y >= blockStart; y--)
+		{
+			if(startPixels[y] < 0)
+			{
+				int end;
+				while((end = lineEnd.get()) < y && !lineEnd.compareAndSet(end, y))
+				{
+					// Another thread found an end meanwhile, keep the highest one
+				}
+				return;
+			}
+		}
+	}
 
-				// Left to right: find the first pixel that is under the threshold and mark it as end
-				if((0xff & ((int) data[rx * undersample * width * undersample + y * undersample])) - 16 < threshold)
+	/**
+	 * Thresholds the rows from top to bottom of a block, the points found
+	 * replace the ones of a previous search of the block.
+	 */
+	private void scanRows(byte[] data, int block, int blockStart, int blockEnd, int top, int bottom)
+	{
+		for(int y = blockStart; y <= blockEnd; y++)
+		{
+			startPixels[y] = -1;
+		}
+
+		int[] counts = null;
+		int levels = block * LEVELS;
+		if(counting)
+		{
+			counts = blockHistograms;
+			for(int level = levels; level < levels + LEVELS; level++)
+			{
+				counts[level] = 0;
+			}
+			blockFrames[block] = frame;
+		}
+
+		// Read once, the threshold is volatile and it's compared with every pixel
+		int dark = limit;
+		// The block is read row after row, the way the preview lies in memory
+		int count = block * blockPoints;
+		for(int x = top; x <= bottom; x++)
+		{
+			int i = rowOffsets[x] + blockStart * undersample;
+			for(int y = blockStart; y <= blockEnd; y++, i += undersample)
+			{
+				int value = data[i] & 0xff;
+				if(counts != null)
 				{
-					if(finishPixel == height + 1)
+					counts[levels + (value >> LEVEL_SHIFT)]++;
+				}
+				if(value < dark)
+				{
+					// Rows come in order, the first one is the top of the line and the last one its bottom
+					if(startPixels[y] < 0)
 					{
-						finishPixel = rx;
+						startPixels[y] = x;
 					}
+					finishPixels[y] = x;
+					// Draw all the pixels under the threshold
+					darkPoints[count++] = height - x;
+					darkPoints[count++] = y;
 				}
 			}
+		}
+		blockCounts[block] = count;
+	}
 
-			// Take average of start and finish pixel position
-			avgerage = height - (startPixel + finishPixel) / 2;
-
-			// Draw path pixels for the fun of it
-			if(startPixel != -1 || finishPixel != height + 1)
+	/**
+	 * @return True if a column of the block has no pixel under the threshold
+	 *         between the rows top and bottom, or if its line touches one of
+	 *         them and might go on past it
+	 */
+	private boolean isCut(int blockStart, int blockEnd, int top, int bottom)
+	{
+		for(int y = blockStart; y <= blockEnd; y++)
+		{
+			if(startPixels[y] < 0 || (top > 0 && startPixels[y] == top) || (bottom < height - 1 && finishPixels[y] == bottom))
 			{
-				overlayCanvas.drawPoint(avgerage, y, red);
+				return true;
+			}
+		}
+		return false;
+	}
 
-				// Use the first pixel row for the error calculation
-				if(y == width - 2)
+	/**
+	 * Adds up the histograms of the blocks searched in this frame up to the
+	 * end of the line and moves the automatic threshold towards the best one
+	 * for them. Another thread may have searched a block past the end before
+	 * the end was found, what's there is not the floor around the line. Nothing
+	 * changes when all the pixels are about as bright, there's no line to tell
+	 * apart.
+	 */
+	private void updateThreshold(int end)
+	{
+		for(int level = 0; level < LEVELS; level++)
+		{
+			histogram[level] = 0;
+		}
+		for(int block = 0; block < blocks; block++)
+		{
+			if(width - 1 - block * BLOCK <= end)
+			{
+				// This block and the ones after it are past the end
+				break;
+			}
+			if(blockFrames[block] == frame)
+			{
+				for(int level = 0, i = block * LEVELS; level < LEVELS; level++, i++)
 				{
-					error = (int) (100 * (2 * (float) avgerage / height - 1));
-					pathFound = 1;
+					histogram[level] += blockHistograms[i];
 				}
 			}
-			else
+		}
+
+		long total = 0, sum = 0;
+		for(int level = 0; level < LEVELS; level++)
+		{
+			total += histogram[level];
+			sum += (long) level * histogram[level];
+		}
+
+		// The dark pixels are the ones up to best, the split that leaves them the furthest apart from the light ones
+		long countBelow = 0, sumBelow = 0;
+		double bestVariance = 0;
+		int best = -1, bestEnd = -1;
+		for(int level = 0; level < LEVELS - 1; level++)
+		{
+			countBelow += histogram[level];
+			sumBelow += (long) level * histogram[level];
+			long countAbove = total - countBelow;
+			if(countBelow == 0)
+			{
+				continue;
+			}
+			if(countAbove == 0)
 			{
 				break;
 			}
+			// Variance between the two sides, up to the number of pixels squared
+			double difference = (double) (total * sumBelow - sum * countBelow);
+			double variance = difference * difference / ((double) countBelow * countAbove);
+			if(variance > bestVariance)
+			{
+				bestVariance = variance;
+				best = level;
+				bestEnd = level;
+			}
+			else if(variance == bestVariance && bestEnd == level - 1)
+			{
+				// No pixel at this level, the split is as good
+				bestEnd = level;
+			}
+		}
+		if(best < 0)
+		{
+			return;
+		}
+		countBelow = 0;
+		sumBelow = 0;
+		for(int level = 0; level <= best; level++)
+		{
+			countBelow += histogram[level];
+			sumBelow += (long) level * histogram[level];
+		}
+		int contrast = (int) (((double) (sum - sumBelow) / (total - countBelow) - (double) sumBelow / countBelow) * (1 << LEVEL_SHIFT));
+		if(contrast < MIN_CONTRAST)
+		{
+			return;
 		}
 
-		// Send the error (the value we want) back to parent with a reclaimed message and also if the value is usable
-		Message.obtain(parentHandler, BluetoothRemoteControlApp.MSG_1, error, pathFound).sendToTarget();
+		// In the middle of the levels without any pixel between the dark and light ones
+		int split = ((best + bestEnd + 2) << LEVEL_SHIFT) / 2;
+		// A quarter of the way each frame, a shadow passing by doesn't change it at once
+		autoLimit += ((split << 8) - autoLimit) / 4;
+		threshold = (autoLimit >> 8) - 16;
+	}
+
+	/**
+	 * Stops the threads of the parallel search, the path can't be used
+	 * afterwards.
+	 */
+	public void close()
+	{
+		if(pool != null)
+		{
+			pool.shutdown();
+		}
+	}
 
+	/**
+	 * Draws the points noted by the last search.
+	 */
+	private void drawOverlay()
+	{
+		Canvas overlayCanvas = holder.lockCanvas();
+		if(overlayCanvas == null)
+		{
+			// The surface is not ready yet or has been destroyed
+			return;
+		}
+		overlayCanvas.drawColor(0, Mode.CLEAR);
+		overlayCanvas.drawPoints(darkPoints, 0, darkCount, yellow);
+		overlayCanvas.drawPoints(pathPoints, 0, pathCount, red);
 		holder.unlockCanvasAndPost(overlayCanvas);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,230 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth.activities;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.bluetooth.BluetoothActivity;
+import com.bluetooth.BluetoothRemoteControlApp;
+import com.bluetooth.CommandPlayer;
+import com.bluetooth.CommandRecorder;
+import com.bluetooth.R;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.widget.Button;
+import android.widget.SeekBar;
+import android.widget.SeekBar.OnSeekBarChangeListener;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * This activity saves a set of instructions and plays them back. Once the
+ * recording is started every command given by the other activities is saved
+ * with its time, the user can go drive the robot with any of them and come
+ * back here to stop the recording. The playback sends the same commands with
+ * the same timing, or faster or slower.
+ */
+public class Program extends BluetoothActivity
+{
+	private static final int REFRESH_INTERVAL = 500;
+	// Playback speeds for each position of the speed bar
+	private static final float[] SPEEDS = { 0.25f, 0.5f, 1, 2, 4 };
+
+	private BluetoothRemoteControlApp app;
+	private File file;
+	private TextView tvRecording, tvSpeed;
+	private Button bRecord, bPlay;
+	private CommandPlayer player;
+	private float speed = 1;
+	private final Handler handler = new Handler();
+
+	private final Runnable refresh = new Runnable()
+	{
+		public void run()
+		{
+			CommandRecorder recorder = app.getRecorder();
+			if(recorder != null)
+			{
+				tvRecording.setText(String.format("Recording: %d commands, %.1f s", recorder.getCount(), recorder.getDuration() / 1e9));
+				handler.postDelayed(this, REFRESH_INTERVAL);
+			}
+			else if(player != null)
+			{
+				tvRecording.setText("Playing");
+			}
+			else if(file.exists())
+			{
+				tvRecording.setText(String.format("Recorded: %.1f kB", file.length() / 1024f));
+			}
+		}
+	};
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState)
+	{
+		super.onCreate(savedInstanceState);
+		this.setContentView(R.layout.program);
+
+		app = (BluetoothRemoteControlApp) getApplicationContext();
+		file = new File(getFilesDir(), "program.bin");
+		tvRecording = (TextView) findViewById(R.id.tvRecording);
+
+		tvSpeed = (TextView) findViewById(R.id.tvSpeed);
+		SeekBar sbSpeed = (SeekBar) findViewById(R.id.sbSpeed);
+		sbSpeed.setOnSeekBarChangeListener(new OnSeekBarChangeListener()
+		{
+			public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser)
+			{
+				speed = SPEEDS[progress];
+				tvSpeed.setText("Speed: " + speed + "x");
+			}
+
+			public void onStartTrackingTouch(SeekBar arg0)
+			{
+
+			}
+
+			public void onStopTrackingTouch(SeekBar arg0)
+			{
+
+			}
+		});
+
+		bRecord = (Button) findViewById(R.id.bRecord);
+		bRecord.setOnClickListener(new OnClickListener()
+		{
+			public void onClick(View arg0)
+			{
+				if(app.getRecorder() != null)
+				{
+					app.stopRecording();
+				}
+				else
+				{
+					stopPlayback();
+					try
+					{
+						app.startRecording(file);
+						// Go drive the robot, the recording goes on
+						Toast.makeText(Program.this, "Recording, use any activity to drive", Toast.LENGTH_SHORT).show();
+					}
+					catch(IOException e)
+					{
+						Toast.makeText(Program.this, "Could not record", Toast.LENGTH_SHORT).show();
+					}
+				}
+				updateButtons();
+			}
+		});
+
+		bPlay = (Button) findViewById(R.id.bPlay);
+		bPlay.setOnClickListener(new OnClickListener()
+		{
+			public void onClick(View arg0)
+			{
+				if(player != null)
+				{
+					stopPlayback();
+				}
+				else
+				{
+					app.stopRecording();
+					startPlayback();
+				}
+				updateButtons();
+			}
+		});
+	}
+
+	private void startPlayback()
+	{
+		try
+		{
+			player = new CommandPlayer(file, speed, new CommandPlayer.Output()
+			{
+				public void write(String command)
+				{
+					Program.this.write(command);
+				}
+
+				public void writeSpeed(int left, int right)
+				{
+					Program.this.writeSpeed(left, right);
+				}
+
+				public void onFinished(final CommandPlayer finished)
+				{
+					handler.post(new Runnable()
+					{
+						public void run()
+						{
+							// Another playback might have been started in the mean time
+							if(player == finished)
+							{
+								player = null;
+								updateButtons();
+							}
+						}
+					});
+				}
+			});
+			player.start();
+		}
+		catch(IOException e)
+		{
+			player = null;
+			Toast.makeText(this, "Nothing to play", Toast.LENGTH_SHORT).show();
+		}
+	}
+
+	private void stopPlayback()
+	{
+		if(player != null)
+		{
+			player.cancel();
+			player = null;
+			// The robot would keep the last speed of the recording
+			write("r");
+		}
+	}
+
+	private void updateButtons()
+	{
+		bRecord.setText(app.getRecorder() != null ? R.string.stop : R.string.record);
+		bPlay.setText(player != null ? R.string.stop : R.string.play);
+		handler.removeCallbacks(refresh);
+		handler.post(refresh);
+	}
+
+	@Override
+	protected void onResume()
+	{
+		updateButtons();
+		super.onResume();
+	}
+
+	@Override
+	protected void onPause()
+	{
+		handler.removeCallbacks(refresh);
+		stopPlayback();
+		super.onPause();
+	}
+}
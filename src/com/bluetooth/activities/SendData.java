@@ -39,6 +39,8 @@ public class SendData extends BluetoothActivity
 	protected void onCreate(Bundle savedInstanceState)
 	{
 		super.onCreate(savedInstanceState);
+		// The sent commands are shown on screen
+		echoWrites = true;
 		this.setContentView(R.layout.send_data);
 
 		// Prepare the UI
@@ -90,7 +90,7 @@ public class TouchControl extends BluetoothActivity implements OnTouchListener,
 			wheelLeft = 0;
 			wheelRight = 0;
 			drawJoystick(v.getWidth() / 2, v.getHeight() / 2);
-			write("s,0,0");
+			writeSpeed(0, 0);
 			break;
 		case MotionEvent.ACTION_DOWN:
 		case MotionEvent.ACTION_MOVE:
@@ -122,7 +122,7 @@ public class TouchControl extends BluetoothActivity implements OnTouchListener,
 
 			if(running)
 			{
-				write("s," + wheelLeft + "," + wheelRight);
+				writeSpeed(wheelLeft, wheelRight);
 			}
 			break;
 		}
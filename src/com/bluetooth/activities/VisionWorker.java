@@ -0,0 +1,161 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth.activities;
+
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.Message;
+
+/**
+ * This thread runs the path processing so the camera callback returns right
+ * away. The camera is given several preview buffers: while a frame is being
+ * processed the camera fills the next one, so capturing and processing overlap
+ * and frames come at the camera's rate.
+ * <p>
+ * Only the latest frame matters for following a line, when the worker is
+ * still busy with a frame and two more arrive the older one is given back to
+ * the camera without being processed.
+ * <p>
+ * The camera is only used from the thread that opened it: processed frames
+ * are handed back to that thread with a message, a pooled message so no
+ * object is made per frame.
+ */
+class VisionWorker extends Thread implements Handler.Callback
+{
+	private final Camera camera;
+	private final Path path;
+	// Runs on the thread that opened the camera
+	private final Handler cameraHandler;
+	// Frame waiting for the worker, null when there's none
+	private byte[] pending;
+	private boolean running = true;
+
+	/**
+	 * Constructor. Gives the buffers to the camera and starts the thread, it
+	 * must be called from the thread that opened the camera.
+	 * 
+	 * @param previewCamera
+	 *            Camera the frames come from and the buffers go back to
+	 * @param framePath
+	 *            Processes the frames
+	 * @param frameSize
+	 *            Size of a preview frame in bytes
+	 * @param buffers
+	 *            Number of preview buffers: one filled by the camera, one
+	 *            processed and one waiting make 3
+	 */
+	public VisionWorker(Camera previewCamera, Path framePath, int frameSize, int buffers)
+	{
+		super("Vision");
+		camera = previewCamera;
+		path = framePath;
+		cameraHandler = new Handler(this);
+		for(int i = 0; i < buffers; i++)
+		{
+			camera.addCallbackBuffer(new byte[frameSize]);
+		}
+		start();
+	}
+
+	/**
+	 * Hands a frame over to the worker, called from the camera callback.
+	 */
+	public synchronized void submit(byte[] frame)
+	{
+		if(!running)
+		{
+			return;
+		}
+		if(pending != null)
+		{
+			// Not processed in time, a newer frame replaces it
+			camera.addCallbackBuffer(pending);
+		}
+		pending = frame;
+		notify();
+	}
+
+	public void run()
+	{
+		while(true)
+		{
+			byte[] frame;
+			synchronized(this)
+			{
+				while(pending == null && running)
+				{
+					try
+					{
+						wait();
+					}
+					catch(InterruptedException e)
+					{
+						return;
+					}
+				}
+				if(!running)
+				{
+					return;
+				}
+				frame = pending;
+				pending = null;
+			}
+
+			path.processFrame(frame);
+
+			Message.obtain(cameraHandler, 0, frame).sendToTarget();
+		}
+	}
+
+	/**
+	 * Gives a processed frame back to the camera, on the thread that opened
+	 * it.
+	 */
+	public boolean handleMessage(Message msg)
+	{
+		synchronized(this)
+		{
+			// The camera might be released by now
+			if(running)
+			{
+				camera.addCallbackBuffer((byte[]) msg.obj);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the worker, it must be called before the camera is released. The
+	 * frame being processed is finished first.
+	 */
+	public void quit()
+	{
+		synchronized(this)
+		{
+			running = false;
+			pending = null;
+			notify();
+		}
+		try
+		{
+			join();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
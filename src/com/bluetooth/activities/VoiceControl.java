@@ -49,6 +49,8 @@ public class VoiceControl extends BluetoothActivity
 	public void onCreate(Bundle savedInstanceState)
 	{
 		super.onCreate(savedInstanceState);
+		// The sent commands are shown on screen
+		echoWrites = true;
 		setContentView(R.layout.voice_control);
 
 		tvData = (LogView) findViewById(R.id.tvData);
@@ -107,23 +109,23 @@ public class VoiceControl extends BluetoothActivity
 					tvData.append("Command: " + command + "\n");
 					if(command == "go")
 					{
-						write("s," + speed + "," + speed);
+						writeSpeed(speed, speed);
 					}
 					else if(command == "left")
 					{
-						write("s," + (-speed) + "," + speed);
+						writeSpeed(-speed, speed);
 					}
 					else if(command == "right")
 					{
-						write("s," + speed + "," + (-speed));
+						writeSpeed(speed, -speed);
 					}
 					else if(command == "back")
 					{
-						write("s," + (-speed) + "," + (-speed));
+						writeSpeed(-speed, -speed);
 					}
 					else if(command == "stop")
 					{
-						write("s,0,0");
+						writeSpeed(0, 0);
 					}
 					else if(command == "fast" && speed <= 90)
 					{
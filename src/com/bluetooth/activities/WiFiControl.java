@@ -108,6 +108,8 @@ public class WiFiControl extends BluetoothActivity
 	protected void onCreate(Bundle savedInstanceState)
 	{
 		super.onCreate(savedInstanceState);
+		// The sent commands are shown on screen
+		echoWrites = true;
 		setContentView(R.layout.wifi_control);
 
 		SERVERIP = getLocalIpAddress();
@@ -0,0 +1,170 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * This tool turns a capture made by TrafficCapture into text, one line per
+ * frame, or into CSV to be opened in a spreadsheet. It runs on a computer once
+ * the capture has been copied from the phone:
+ * 
+ * <pre>
+ * java -cp bin/classes:tools/bin com.bluetooth.CaptureConverter [-csv] capture.bin
+ * </pre>
+ * 
+ * The bytes that are not printable (binary speed frames) are shown as \xNN.
+ */
+public class CaptureConverter
+{
+	private final DataInputStream inStream;
+	private final boolean csv;
+	private final byte[] payload = new byte[TrafficCapture.MAX_PAYLOAD];
+
+	public CaptureConverter(DataInputStream input, boolean toCsv)
+	{
+		inStream = input;
+		csv = toCsv;
+	}
+
+	/**
+	 * Reads the whole capture and prints it.
+	 * 
+	 * @return Number of records
+	 * @throws IOException
+	 *             When the file is not a capture
+	 */
+	public int convert(PrintStream out) throws IOException
+	{
+		for(int i = 0; i < TrafficCapture.MAGIC.length; i++)
+		{
+			if(inStream.readByte() != TrafficCapture.MAGIC[i])
+			{
+				throw new IOException("Not a capture");
+			}
+		}
+		long started = inStream.readLong();
+		if(csv)
+		{
+			out.println("time,session,direction,length,data");
+		}
+		else
+		{
+			out.println("Capture started " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(started)));
+		}
+
+		int count = 0;
+		while(true)
+		{
+			long time;
+			try
+			{
+				time = inStream.readLong();
+			}
+			catch(EOFException e)
+			{
+				// End of the capture
+				return count;
+			}
+			int direction = inStream.readByte();
+			int session = inStream.readInt();
+			int length = inStream.readUnsignedShort();
+			int stored = inStream.readUnsignedShort();
+			inStream.readFully(payload, 0, stored);
+			String data = escape(payload, stored, length > stored);
+			count++;
+
+			if(csv)
+			{
+				out.println(String.format("%.6f,%d,%s,%d,\"%s\"", time / 1e9, session, getName(direction), length, data.replace("\"", "\"\"")));
+			}
+			else if(direction == TrafficCapture.SESSION)
+			{
+				out.println(String.format("%12.6f #%d connected to %s", time / 1e9, session, data));
+			}
+			else
+			{
+				out.println(String.format("%12.6f #%d %s %s", time / 1e9, session, direction == TrafficCapture.IN ? "<" : ">", data));
+			}
+		}
+	}
+
+	private static String getName(int direction)
+	{
+		switch(direction)
+		{
+			case TrafficCapture.IN:
+				return "in";
+			case TrafficCapture.OUT:
+				return "out";
+			default:
+				return "session";
+		}
+	}
+
+	private static String escape(byte[] bytes, int length, boolean cut)
+	{
+		StringBuilder text = new StringBuilder(length + 8);
+		for(int i = 0; i < length; i++)
+		{
+			int b = bytes[i] & 0xff;
+			if(b == '\\')
+			{
+				text.append("\\\\");
+			}
+			else if(b >= ' ' && b < 0x7f)
+			{
+				text.append((char) b);
+			}
+			else
+			{
+				text.append(String.format("\\x%02x", b));
+			}
+		}
+		if(cut)
+		{
+			text.append("...");
+		}
+		return text.toString();
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		boolean csv = args.length == 2 && args[0].equals("-csv");
+		if(args.length != (csv ? 2 : 1))
+		{
+			System.err.println("Usage: CaptureConverter [-csv] capture.bin");
+			System.exit(1);
+		}
+
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(args[args.length - 1]), 65536));
+		try
+		{
+			new CaptureConverter(input, csv).convert(System.out);
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+}
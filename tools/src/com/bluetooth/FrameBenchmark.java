@@ -0,0 +1,207 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * This tool measures how fast FrameReader cuts a stream of telemetry lines in
+ * frames, next to the byte by byte reading with a String per line it replaced.
+ * The lines come from a synthetic stream handing them over in chunks of random
+ * size, the way a socket returns what has arrived so far. It runs on a
+ * computer:
+ * 
+ * <pre>
+ * java -cp bin/classes:tools/bin com.bluetooth.FrameBenchmark [seconds] [largest chunk]
+ * </pre>
+ * 
+ * For each reader it prints the throughput in MB and frames per second and the
+ * latency from the moment a chunk is returned by the stream to the moment the
+ * frames it ends are handed over, in nanoseconds (for the byte by byte reading
+ * the chunk is the last byte of the line). A read here is a method call and not
+ * a system call, so the real gain of reading in bulk is higher.
+ */
+public class FrameBenchmark implements FrameReader.FrameListener
+{
+	// Lines the robot sends when streaming the ADC, and a few longer ones
+	private static final int LINES = 4096;
+
+	private final ChunkedStream stream;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private long frames, checksum;
+
+	/**
+	 * Stream that loops over the same lines, returning at most a chunk of
+	 * random size per read and noting when it did.
+	 */
+	private static class ChunkedStream extends InputStream
+	{
+		private final byte[] data;
+		private final int[] chunks;
+		private int position, chunk;
+		private long bytes;
+		// Time the last read returned
+		private long arrival;
+
+		public ChunkedStream(byte[] lines, int largestChunk, Random random)
+		{
+			data = lines;
+			chunks = new int[1024];
+			for(int i = 0; i < chunks.length; i++)
+			{
+				chunks[i] = 1 + random.nextInt(largestChunk);
+			}
+		}
+
+		public int read()
+		{
+			int b = data[position];
+			position = (position + 1) % data.length;
+			bytes++;
+			arrival = System.nanoTime();
+			return b;
+		}
+
+		public int read(byte[] buffer, int offset, int length)
+		{
+			int count = Math.min(Math.min(length, chunks[chunk++ & (chunks.length - 1)]), data.length - position);
+			System.arraycopy(data, position, buffer, offset, count);
+			position = (position + count) % data.length;
+			bytes += count;
+			arrival = System.nanoTime();
+			return count;
+		}
+	}
+
+	public FrameBenchmark(ChunkedStream input)
+	{
+		stream = input;
+	}
+
+	public void onFrame(byte[] buffer, int offset, int length)
+	{
+		latency.record(System.nanoTime() - stream.arrival);
+		frames++;
+		checksum += buffer[offset] + length;
+	}
+
+	/**
+	 * Reads with FrameReader for the given time.
+	 */
+	private void runFrameReader(long nanos) throws IOException
+	{
+		FrameReader reader = new FrameReader(1024, this);
+		long end = System.nanoTime() + nanos;
+		while(System.nanoTime() < end)
+		{
+			for(int i = 0; i < 64; i++)
+			{
+				reader.read(stream);
+			}
+		}
+	}
+
+	/**
+	 * Reads the way BluetoothThread.run() used to for the given time: one byte
+	 * per call and a new String for each line.
+	 */
+	private void runByteReader(long nanos) throws IOException
+	{
+		byte[] buffer = new byte[1024];
+		byte ch;
+		int bytes;
+		String input;
+		long end = System.nanoTime() + nanos;
+		while(System.nanoTime() < end)
+		{
+			bytes = 0;
+			while((ch = (byte) stream.read()) != '\n')
+			{
+				buffer[bytes++] = ch;
+			}
+			if(bytes > 0)
+			{
+				input = new String(buffer, "UTF-8").substring(0, bytes - 1);
+				latency.record(System.nanoTime() - stream.arrival);
+				frames++;
+				checksum += input.length();
+			}
+		}
+	}
+
+	private void report(String name, long nanos)
+	{
+		double seconds = nanos / 1e9;
+		System.out.println(String.format("%-12s %7.1f MB/s %9.0f frames/s  latency mean %d p50 %d p99 %d max %d ns", name, stream.bytes / seconds / 1e6, frames / seconds, latency.getMean(), latency.getPercentile(50), latency.getPercentile(99), latency.getMax()));
+	}
+
+	private void reset()
+	{
+		stream.bytes = 0;
+		frames = 0;
+		latency.reset();
+	}
+
+	/**
+	 * @return Telemetry lines ended by \r\n like println() does, one in 64 of
+	 *         them a longer text line
+	 */
+	private static byte[] makeLines(Random random)
+	{
+		StringBuilder lines = new StringBuilder();
+		for(int i = 0; i < LINES; i++)
+		{
+			if(i % 64 == 63)
+			{
+				lines.append("Zygote 1.2 status");
+				for(int j = random.nextInt(200); j > 0; j--)
+				{
+					lines.append((char) ('a' + random.nextInt(26)));
+				}
+			}
+			else
+			{
+				lines.append(random.nextInt(1024));
+			}
+			lines.append("\r\n");
+		}
+		return lines.toString().getBytes();
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int largestChunk = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+		byte[] lines = makeLines(new Random(1));
+		long nanos = seconds * 1000000000L;
+
+		FrameBenchmark frameReader = new FrameBenchmark(new ChunkedStream(lines, largestChunk, new Random(2)));
+		FrameBenchmark byteReader = new FrameBenchmark(new ChunkedStream(lines, largestChunk, new Random(2)));
+		// Let the JIT compile both before measuring
+		frameReader.runFrameReader(nanos / 3);
+		byteReader.runByteReader(nanos / 3);
+		frameReader.reset();
+		byteReader.reset();
+
+		System.out.println("Chunks of 1 to " + largestChunk + " bytes, " + seconds + " s each");
+		frameReader.runFrameReader(nanos);
+		frameReader.report("FrameReader", nanos);
+		byteReader.runByteReader(nanos);
+		byteReader.report("Byte reads", nanos);
+	}
+}
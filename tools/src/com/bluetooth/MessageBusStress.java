@@ -0,0 +1,134 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This tool checks that the MessageBus never leaves a message undelivered.
+ * Several threads publish one message each at the same time, then nothing is
+ * published until the subscriber got all of them: a message that's only
+ * delivered when the next one wakes the subscriber up is caught. This is
+ * repeated many times so the subscriber goes to sleep while the messages
+ * arrive in every possible order. It runs on a computer, best with several
+ * cores:
+ * 
+ * <pre>
+ * java -cp bin/classes:tools/bin com.bluetooth.MessageBusStress [rounds] [threads]
+ * </pre>
+ * 
+ * It exits with 1 if a message was not delivered in time or was dropped.
+ */
+public class MessageBusStress implements MessageBus.Subscriber
+{
+	// Far longer than a delivery takes, even on a loaded computer
+	private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+	private final AtomicLong delivered = new AtomicLong();
+
+	public void onMessage(int kind, Connection source, String text)
+	{
+		delivered.incrementAndGet();
+	}
+
+	/**
+	 * Publishes one message per round, at the same time as the other threads.
+	 */
+	private static class Publisher extends Thread
+	{
+		private final MessageBus bus;
+		private final CyclicBarrier start, published;
+		private final int rounds;
+
+		Publisher(int number, MessageBus messageBus, CyclicBarrier startBarrier, CyclicBarrier publishedBarrier, int publisherRounds)
+		{
+			super("Publisher " + number);
+			bus = messageBus;
+			start = startBarrier;
+			published = publishedBarrier;
+			rounds = publisherRounds;
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			try
+			{
+				for(int i = 0; i < rounds; i++)
+				{
+					start.await();
+					bus.publish(MessageBus.READ, null, "Round");
+					published.await();
+				}
+			}
+			catch(InterruptedException e)
+			{
+				// The check is over
+			}
+			catch(BrokenBarrierException e)
+			{
+				// The check is over
+			}
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException, BrokenBarrierException
+	{
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(2, Runtime.getRuntime().availableProcessors());
+
+		MessageBus bus = new MessageBus();
+		MessageBusStress check = new MessageBusStress();
+		MessageBus.Subscription subscription = bus.subscribe(check, MessageBus.READ);
+
+		CyclicBarrier start = new CyclicBarrier(threads + 1);
+		CyclicBarrier published = new CyclicBarrier(threads + 1);
+		for(int i = 0; i < threads; i++)
+		{
+			new Publisher(i, bus, start, published, rounds).start();
+		}
+
+		long expected = 0, slowest = 0;
+		for(int i = 0; i < rounds; i++)
+		{
+			start.await();
+			published.await();
+			expected += threads;
+
+			long begin = System.nanoTime();
+			while(check.delivered.get() < expected)
+			{
+				long waited = System.nanoTime() - begin;
+				if(waited > TIMEOUT)
+				{
+					System.out.println("FAILED: round " + i + ", " + (expected - check.delivered.get()) + " of " + threads + " messages not delivered after " + TimeUnit.NANOSECONDS.toMillis(waited) + " ms");
+					System.exit(1);
+				}
+				Thread.yield();
+			}
+			slowest = Math.max(slowest, System.nanoTime() - begin);
+		}
+		bus.unsubscribe(subscription);
+
+		System.out.println(rounds + " rounds of " + threads + " threads, " + check.delivered.get() + " messages delivered, " + subscription.getDropped() + " dropped, slowest round " + TimeUnit.NANOSECONDS.toMicros(slowest) + " us");
+		boolean failed = subscription.getDropped() > 0 || check.delivered.get() != expected;
+		System.out.println(failed ? "FAILED: messages were lost" : "OK: every message was delivered");
+		System.exit(failed ? 1 : 0);
+	}
+}
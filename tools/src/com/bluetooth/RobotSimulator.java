@@ -0,0 +1,1033 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class simulates a robot running the Arduino-Bluetooth sketch, so the
+ * whole application protocol can be run and measured on a computer without a
+ * robot. The firmware part follows ArduinoBluetooth.ino line by line: the same
+ * commands (s, r, i, a and the filler), the same parseCommand() with its quirks,
+ * the same replies and the same 1 second watchdog that stops the robot when
+ * nothing was received. The motors drive a differential drive robot whose
+ * position can be read.
+ * <p>
+ * The robot is reached through a PipeTransport (it's the Peer) or over TCP with
+ * serve(). The serial link in between can be made as slow as the real one: each
+ * byte takes 10 bits at the given baud rate in both directions, and each frame
+ * can be delayed at random (jitter) or lost. Like the real robot it has a
+ * single serial port, a new connection replaces the previous one.
+ * <p>
+ * It runs on its own, for a TcpTransport on another machine:
+ * 
+ * <pre>
+ * java -cp bin/classes:tools/bin com.bluetooth.RobotSimulator [port] [baud] [jitter ms] [loss]
+ * </pre>
+ */
+public class RobotSimulator extends Thread implements PipeTransport.Peer
+{
+	private static final int OP_SPEED = 0x80;
+	private static final int SPEED_FRAME_LENGTH = 5;
+	private static final int WINDOW = 3;
+	// serialData[32] holds 31 characters and the end of the string
+	private static final int SERIAL_DATA = 31;
+	// Bytes the Arduino sends without waiting, Serial.print() blocks once its buffer is full
+	private static final int TX_BUFFER = 64;
+	// 8e6Hz / 256 / 256 / 122 = 1Hz
+	private static final long TIMER_PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+	private final String name;
+	private final Random random;
+	private int baudRate;
+	private long jitter;
+	private float loss;
+	// Differential drive: wheel speed at full power in m/s and distance between the wheels in m
+	private double maxWheelSpeed = 0.5, track = 0.1;
+
+	// Firmware state, only used by the firmware thread
+	private boolean connected, com, sequenced;
+	private int lastSequence = -1;
+	// Bit n is set once the command numbered lastSequence - n has run
+	private int ran;
+	// Number of the last command that set the speed (s or r), older ones are not run
+	private int lastSpeed = -1;
+	private long nextTick;
+	private Frame pending;
+	private final StringBuilder reply = new StringBuilder();
+
+	// Set by setSpeed(), -1023 to 1023 like the PWM registers
+	private int leftDuty, rightDuty;
+	private double x, y, heading;
+	private long poseTime;
+
+	private final LinkedBlockingQueue<Frame> frames = new LinkedBlockingQueue<Frame>();
+	private volatile Session session;
+	private volatile ServerSocket server;
+	private volatile int commands, errors, duplicates, resets;
+	private final AtomicInteger dropped = new AtomicInteger();
+
+	/**
+	 * A frame received from the application, once it has gone through the
+	 * simulated link.
+	 */
+	private static class Frame
+	{
+		final byte[] data;
+		final int length;
+		// Time the last byte has been received by the robot
+		final long arrival;
+		final Session session;
+
+		Frame(byte[] frameData, int frameLength, long arrivalTime, Session frameSession)
+		{
+			data = frameData;
+			length = frameLength;
+			arrival = arrivalTime;
+			session = frameSession;
+		}
+	}
+
+	/**
+	 * One direction of the serial link. The bytes of a frame take their time
+	 * to go through and a frame can't overtake the previous one, the jitter
+	 * comes on top.
+	 */
+	private static class SerialLine
+	{
+		private final long byteTime, jitter;
+		private final float loss;
+		private final Random random;
+		// Time the line is done sending what it has been given
+		private long free;
+		private long lastDue;
+
+		SerialLine(int baudRate, long jitterNanos, float lossRate, Random linkRandom)
+		{
+			// 8 data bits, a start bit and a stop bit
+			byteTime = baudRate > 0 ? 10 * 1000000000L / baudRate : 0;
+			jitter = jitterNanos;
+			loss = lossRate;
+			random = linkRandom;
+		}
+
+		/**
+		 * @return Time the frame reaches the other end, -1 if it's lost
+		 */
+		synchronized long schedule(int bytes)
+		{
+			long now = System.nanoTime();
+			free = Math.max(now, free) + bytes * byteTime;
+			long due = free;
+			if(jitter > 0)
+			{
+				due += (long) (random.nextDouble() * jitter);
+			}
+			lastDue = Math.max(lastDue, due);
+			if(loss > 0 && random.nextFloat() < loss)
+			{
+				// The bytes did take the line
+				return -1;
+			}
+			return lastDue;
+		}
+
+		/**
+		 * @return Time in nanoseconds before the given number of bytes are
+		 *         left to send
+		 */
+		synchronized long waitFor(int bytes)
+		{
+			return free - bytes * byteTime - System.nanoTime();
+		}
+	}
+
+	/**
+	 * The streams of a connection: a thread cuts the received bytes into
+	 * frames the way the firmware reads them, another one sends the replies
+	 * once they have gone through the link.
+	 */
+	private class Session
+	{
+		final InputStream inStream;
+		final OutputStream outStream;
+		final SerialLine rxLine, txLine;
+		// Without a baud rate the replies are only held back by the application reading them
+		final LinkedBlockingQueue<Frame> replies = new LinkedBlockingQueue<Frame>(TX_BUFFER);
+		volatile boolean open = true;
+
+		final Thread receiver = new Thread("Simulator receiver")
+		{
+			public void run()
+			{
+				try
+				{
+					receive();
+				}
+				catch(IOException e)
+				{
+					// The application has closed the link
+				}
+				close();
+			}
+		};
+
+		final Thread transmitter = new Thread("Simulator transmitter")
+		{
+			public void run()
+			{
+				try
+				{
+					while(open)
+					{
+						Frame frame = replies.take();
+						long wait;
+						while((wait = frame.arrival - System.nanoTime()) > 0)
+						{
+							LockSupport.parkNanos(this, wait);
+						}
+						outStream.write(frame.data, 0, frame.length);
+						outStream.flush();
+					}
+				}
+				catch(InterruptedException e)
+				{
+					// Closed
+				}
+				catch(IOException e)
+				{
+					// The application has closed the link
+				}
+				close();
+			}
+		};
+
+		Session(InputStream input, OutputStream output)
+		{
+			inStream = new BufferedInputStream(input, 256);
+			outStream = output;
+			synchronized(RobotSimulator.this)
+			{
+				rxLine = new SerialLine(baudRate, jitter, loss, random);
+				txLine = new SerialLine(baudRate, jitter, loss, random);
+			}
+			receiver.setDaemon(true);
+			transmitter.setDaemon(true);
+		}
+
+		void start()
+		{
+			receiver.start();
+			transmitter.start();
+		}
+
+		/**
+		 * Reads frames like the loop() of the firmware: a speed frame when the
+		 * first byte is OP_SPEED, otherwise up to a new line or 31 characters.
+		 */
+		private void receive() throws IOException
+		{
+			while(open)
+			{
+				int first = inStream.read();
+				if(first < 0)
+				{
+					return;
+				}
+				byte[] data = new byte[SERIAL_DATA];
+				int length = 0, bytes = 1;
+				if(first == OP_SPEED)
+				{
+					data[length++] = (byte) first;
+					while(length < SPEED_FRAME_LENGTH)
+					{
+						int b = inStream.read();
+						if(b < 0)
+						{
+							return;
+						}
+						data[length++] = (byte) b;
+					}
+					bytes = length;
+				}
+				else
+				{
+					int b = first;
+					// readBytesUntil() drops the new line and stops after 31 characters
+					while(b != '\n')
+					{
+						data[length++] = (byte) b;
+						if(length == SERIAL_DATA)
+						{
+							break;
+						}
+						b = inStream.read();
+						if(b < 0)
+						{
+							return;
+						}
+					}
+					bytes = length + (b == '\n' ? 1 : 0);
+				}
+
+				long arrival = rxLine.schedule(bytes);
+				if(arrival < 0)
+				{
+					dropped.incrementAndGet();
+					continue;
+				}
+				frames.offer(new Frame(data, length, arrival, this));
+			}
+		}
+
+		/**
+		 * Sends a reply like Serial.print(), waiting when the transmit buffer
+		 * is full.
+		 */
+		void send(CharSequence text)
+		{
+			long wait;
+			while(open && (wait = txLine.waitFor(TX_BUFFER)) > 0)
+			{
+				LockSupport.parkNanos(wait);
+			}
+			byte[] data = new byte[text.length()];
+			for(int i = 0; i < data.length; i++)
+			{
+				data[i] = (byte) text.charAt(i);
+			}
+			long arrival = txLine.schedule(data.length);
+			if(arrival < 0)
+			{
+				dropped.incrementAndGet();
+				return;
+			}
+			Frame frame = new Frame(data, data.length, arrival, this);
+			try
+			{
+				while(open && !replies.offer(frame, 100, TimeUnit.MILLISECONDS))
+				{
+					// Wait for the application to read
+				}
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		void close()
+		{
+			if(!open)
+			{
+				return;
+			}
+			open = false;
+			transmitter.interrupt();
+			try
+			{
+				inStream.close();
+				outStream.close();
+			}
+			catch(IOException e)
+			{
+				// Already closed
+			}
+			if(session == this)
+			{
+				session = null;
+			}
+		}
+	}
+
+	/**
+	 * Constructor. The robot is switched on right away, it waits for a
+	 * connection.
+	 * 
+	 * @param robotName
+	 *            Name given in reply to the "i" command
+	 * @param seed
+	 *            Seed of the jitter and the losses, the same seed gives the
+	 *            same link
+	 */
+	public RobotSimulator(String robotName, long seed)
+	{
+		super("Simulator");
+		name = robotName;
+		random = new Random(seed);
+		poseTime = System.nanoTime();
+		nextTick = poseTime + TIMER_PERIOD;
+		setDaemon(true);
+		start();
+	}
+
+	/**
+	 * Sets how the serial link behaves, used by the next connections.
+	 * 
+	 * @param baud
+	 *            Speed of the serial port (9600 for the Bluetooth dongle), 0
+	 *            for no delay
+	 * @param jitterMillis
+	 *            Longest random delay added to each frame
+	 * @param lossRate
+	 *            Part of the frames lost in each direction, from 0 to 1
+	 */
+	public synchronized void setLink(int baud, int jitterMillis, float lossRate)
+	{
+		baudRate = baud;
+		jitter = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+		loss = lossRate;
+	}
+
+	/**
+	 * Sets the size of the robot.
+	 * 
+	 * @param wheelSpeed
+	 *            Speed of a wheel at full power in meters per second
+	 * @param wheelTrack
+	 *            Distance between the wheels in meters
+	 */
+	public synchronized void setDrive(double wheelSpeed, double wheelTrack)
+	{
+		updatePose();
+		maxWheelSpeed = wheelSpeed;
+		track = wheelTrack;
+	}
+
+	/**
+	 * Connects the robot to new streams, the previous connection is closed.
+	 */
+	public void accept(InputStream fromApplication, OutputStream toApplication)
+	{
+		Session old = session;
+		if(old != null)
+		{
+			old.close();
+		}
+		Session next = new Session(fromApplication, toApplication);
+		session = next;
+		next.start();
+	}
+
+	/**
+	 * Listens for TcpTransport connections, one at a time.
+	 * 
+	 * @param port
+	 *            Port to listen on, 0 for any free port
+	 * @return Port listened on
+	 * @throws IOException
+	 *             When the port can't be opened
+	 */
+	public int serve(int port) throws IOException
+	{
+		final ServerSocket socket = new ServerSocket(port);
+		server = socket;
+		Thread listener = new Thread("Simulator server")
+		{
+			public void run()
+			{
+				while(!socket.isClosed())
+				{
+					try
+					{
+						Socket client = socket.accept();
+						client.setTcpNoDelay(true);
+						accept(client.getInputStream(), client.getOutputStream());
+					}
+					catch(IOException e)
+					{
+						// Closed by stopServing()
+					}
+				}
+			}
+		};
+		listener.setDaemon(true);
+		listener.start();
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Stops listening for connections and closes the current one.
+	 */
+	public void stopServing()
+	{
+		try
+		{
+			if(server != null)
+			{
+				server.close();
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		Session current = session;
+		if(current != null)
+		{
+			current.close();
+		}
+	}
+
+	/**
+	 * The main loop of the firmware, including the timer interrupt.
+	 */
+	public void run()
+	{
+		while(true)
+		{
+			timer();
+			Frame frame = nextFrame(nextTick);
+			if(frame == null)
+			{
+				continue;
+			}
+			pending = null;
+			if(frame.session != session)
+			{
+				// Received on a connection that has been replaced
+				continue;
+			}
+			loop(frame);
+		}
+	}
+
+	/**
+	 * Gets the next frame received, waiting at most until the given time.
+	 * 
+	 * @return The frame, null if none has been received yet
+	 */
+	private Frame nextFrame(long until)
+	{
+		long now = System.nanoTime();
+		try
+		{
+			if(pending == null)
+			{
+				pending = frames.poll(Math.max(0, until - now), TimeUnit.NANOSECONDS);
+				if(pending == null)
+				{
+					return null;
+				}
+				now = System.nanoTime();
+			}
+		}
+		catch(InterruptedException e)
+		{
+			return null;
+		}
+		// It's in the queue as soon as sent, but only there once it went through the link
+		long wait = Math.min(pending.arrival, until) - now;
+		if(wait > 0)
+		{
+			LockSupport.parkNanos(this, wait);
+		}
+		return System.nanoTime() - pending.arrival >= 0 ? pending : null;
+	}
+
+	/**
+	 * @return Serial.available()
+	 */
+	private boolean available()
+	{
+		if(pending == null)
+		{
+			pending = frames.poll();
+		}
+		return pending != null && System.nanoTime() - pending.arrival >= 0;
+	}
+
+	/**
+	 * ISR(TIMER2_OVF_vect): the robot is stopped when nothing has been received
+	 * for a whole period.
+	 */
+	private void timer()
+	{
+		if(System.nanoTime() - nextTick < 0)
+		{
+			return;
+		}
+		nextTick += TIMER_PERIOD;
+		if(!com)
+		{
+			if(connected || leftDuty != 0 || rightDuty != 0)
+			{
+				resets++;
+			}
+			reset();
+			// the next connection starts with a new handshake
+			sequenced = false;
+			lastSequence = -1;
+			lastSpeed = -1;
+		}
+		com = false;
+	}
+
+	private void loop(Frame frame)
+	{
+		connected = true;
+		// clear timeout
+		com = true;
+		commands++;
+
+		byte[] serialData = frame.data;
+		if(frame.length > 0 && (serialData[0] & 0xff) == OP_SPEED)
+		{
+			readSpeedFrame(serialData, frame.length);
+			return;
+		}
+
+		if(serialData[0] == '#')
+		{
+			// sequenced command: #sequence;command
+			int command = indexOf(serialData, 0, ';');
+			if(command < 0)
+			{
+				println("Command not recognised");
+			}
+			else if(beginReply(atoi(serialData, 1), serialData[command + 1] == 's' || serialData[command + 1] == 'r'))
+			{
+				execute(serialData, command + 1);
+			}
+		}
+		else
+		{
+			execute(serialData, 0);
+		}
+	}
+
+	private boolean beginReply(int sequence, boolean speed)
+	{
+		print("#" + sequence + ";");
+		int ahead = (sequence - lastSequence) & 0xff;
+		if(lastSequence < 0)
+		{
+			ran = 1;
+			lastSequence = sequence;
+		}
+		else if(ahead != 0 && ahead < 128)
+		{
+			// newer than all the others
+			ran = ahead < 8 ? ((ran << ahead) | 1) & 0xff : 1;
+			lastSequence = sequence;
+		}
+		else
+		{
+			int behind = (lastSequence - sequence) & 0xff;
+			int speedBehind = (lastSpeed - sequence) & 0xff;
+			// already run, too old to tell or a speed older than the current one
+			if(behind >= 8 || (ran & (1 << behind)) != 0 || (speed && lastSpeed >= 0 && speedBehind != 0 && speedBehind < 128))
+			{
+				duplicates++;
+				println("Duplicate");
+				return false;
+			}
+			ran |= 1 << behind;
+		}
+		if(speed)
+		{
+			lastSpeed = sequence;
+		}
+		return true;
+	}
+
+	private void execute(byte[] data, int command)
+	{
+		switch(data[command])
+		{
+			case 0:
+				println("0");
+				break;
+			case 'a':
+				// use as a small and slow oscilloscope
+				int[] pin = new int[1];
+				if(parseCommand(data, command, pin, 1) && pin[0] >= 0 && pin[0] <= 7)
+				{
+					// stop loop by sending something to the robot
+					while(!available() && connected)
+					{
+						println(Integer.toString(analogRead(pin[0])));
+						// The interrupt keeps running meanwhile
+						timer();
+					}
+				}
+				else
+				{
+					errors++;
+					println("Error while setting ADC pin");
+				}
+				break;
+			case 's':
+				// set left and right motor speeds
+				int[] speed = new int[2];
+				if(parseCommand(data, command, speed, 2))
+				{
+					setSpeed(speed[0], speed[1]);
+					println("New speed set");
+				}
+				else
+				{
+					errors++;
+					println("Error while setting new speed");
+				}
+				break;
+			case 'i':
+				// inform about robot, "i,b,w" asks if binary speed frames and sequence numbers are understood
+				print(name);
+				if(indexOf(data, command, ",b") >= 0)
+				{
+					print(",b");
+				}
+				sequenced = indexOf(data, command, ",w") >= 0;
+				// the numbers start over with the new connection
+				lastSequence = -1;
+				lastSpeed = -1;
+				if(sequenced)
+				{
+					print(",w" + WINDOW);
+				}
+				println("");
+				break;
+			case 'r':
+				// quickly stop
+				reset();
+				println("Robot reset");
+				break;
+			default:
+				// inform user of non existing command
+				errors++;
+				println("Command not recognised");
+		}
+	}
+
+	private void readSpeedFrame(byte[] frame, int length)
+	{
+		int sum = 1;
+		if(length == SPEED_FRAME_LENGTH)
+		{
+			sum = 0;
+			for(int i = 0; i < SPEED_FRAME_LENGTH; i++)
+			{
+				sum += frame[i];
+			}
+		}
+
+		if((sum & 0xff) == 0)
+		{
+			// the sequence number can only be trusted once the checksum is right
+			if(sequenced && !beginReply(frame[3] & 0xff, true))
+			{
+				return;
+			}
+			setSpeed(frame[1], frame[2]);
+			println("New speed set");
+		}
+		else
+		{
+			errors++;
+			println("Error while setting new speed");
+		}
+	}
+
+	private void reset()
+	{
+		connected = false;
+		setSpeed(0, 0);
+	}
+
+	/**
+	 * parseCommand() of the firmware, including its quirks: the 2 first
+	 * characters are skipped whatever they are, a minus anywhere in a number
+	 * makes it negative and the numbers are 16 bit ints.
+	 * 
+	 * @param command
+	 *            Start of the command in the data
+	 */
+	static boolean parseCommand(byte[] data, int command, int[] returnValues, int returnNumber)
+	{
+		int i = 1, j = 0, ch = 0, temp = 0;
+		boolean sign = false;
+		while(true)
+		{
+			i++;
+			// Past the received characters serialData is filled with zeros
+			int c = command + i < data.length ? data[command + i] & 0xff : 0;
+			switch(c)
+			{
+				case 0:
+				case ',':
+					// set return value
+					if(ch != 0)
+					{
+						returnValues[j++] = (short) (sign ? -temp : temp);
+						sign = false;
+						temp = 0;
+						ch = 0;
+					}
+					else
+					{
+						return false;
+					}
+					break;
+				case '-':
+					sign = true;
+					break;
+				default:
+					// convert string to int, the byte wraps around below '0'
+					int number = (c - '0') & 0xff;
+					if(number > 9)
+					{
+						return false;
+					}
+					temp = (short) (temp * 10 + number);
+					ch++;
+			}
+
+			// enough return values have been set
+			if(j == returnNumber)
+			{
+				return true;
+			}
+			// end of command reached
+			else if(c == 0)
+			{
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * atoi() of the AVR library, the result is a 16 bit int.
+	 */
+	static int atoi(byte[] data, int start)
+	{
+		int i = start, value = 0;
+		boolean negative = false;
+		while(i < data.length && (data[i] == ' ' || data[i] == '\t'))
+		{
+			i++;
+		}
+		if(i < data.length && (data[i] == '-' || data[i] == '+'))
+		{
+			negative = data[i++] == '-';
+		}
+		while(i < data.length && data[i] >= '0' && data[i] <= '9')
+		{
+			value = value * 10 + data[i++] - '0';
+		}
+		return (short) (negative ? -value : value);
+	}
+
+	private static int indexOf(byte[] data, int start, char c)
+	{
+		for(int i = start; i < data.length && data[i] != 0; i++)
+		{
+			if(data[i] == c)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int indexOf(byte[] data, int start, String text)
+	{
+		for(int i = start; i < data.length && data[i] != 0; i++)
+		{
+			int k = 0;
+			while(k < text.length() && i + k < data.length && data[i + k] == text.charAt(k))
+			{
+				k++;
+			}
+			if(k == text.length())
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * A 10 bit reading, each pin has a sine wave of its own: pin N at N + 1
+	 * Hz.
+	 */
+	private static int analogRead(int pin)
+	{
+		double seconds = System.nanoTime() / 1e9;
+		return (int) (511.5 + 511.5 * Math.sin(2 * Math.PI * (pin + 1) * seconds));
+	}
+
+	private void print(String text)
+	{
+		reply.append(text);
+	}
+
+	private void println(String text)
+	{
+		reply.append(text).append("\r\n");
+		Session current = session;
+		if(current != null)
+		{
+			current.send(reply);
+		}
+		else
+		{
+			// Nobody is connected, the bytes still take time to go out
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		reply.setLength(0);
+	}
+
+	/**
+	 * setSpeed() of the firmware: the speeds are percentages, anything above
+	 * 100 is full power.
+	 */
+	private synchronized void setSpeed(int left, int right)
+	{
+		updatePose();
+		leftDuty = toDuty(left);
+		rightDuty = toDuty(right);
+	}
+
+	private static int toDuty(int speed)
+	{
+		int duty = Math.abs(speed) > 100 ? 1023 : (int) (1023L * Math.abs(speed) / 100);
+		return speed < 0 ? -duty : duty;
+	}
+
+	/**
+	 * Moves the robot along the arc it has followed since the last update, the
+	 * wheel speeds have not changed in the mean time.
+	 */
+	private void updatePose()
+	{
+		long now = System.nanoTime();
+		double dt = (now - poseTime) / 1e9;
+		poseTime = now;
+
+		double left = leftDuty / 1023.0 * maxWheelSpeed;
+		double right = rightDuty / 1023.0 * maxWheelSpeed;
+		double v = (left + right) / 2;
+		double w = (right - left) / track;
+		if(Math.abs(w) < 1e-9)
+		{
+			x += v * Math.cos(heading) * dt;
+			y += v * Math.sin(heading) * dt;
+		}
+		else
+		{
+			double radius = v / w;
+			double next = heading + w * dt;
+			x += radius * (Math.sin(next) - Math.sin(heading));
+			y -= radius * (Math.cos(next) - Math.cos(heading));
+			heading = next;
+		}
+	}
+
+	/**
+	 * @return Position of the robot in meters and its heading in radians,
+	 *         starting at 0, 0 facing along x
+	 */
+	public synchronized double[] getPose()
+	{
+		updatePose();
+		return new double[] {x, y, heading};
+	}
+
+	/**
+	 * @return Power of the left motor, -1023 to 1023
+	 */
+	public synchronized int getLeftDuty()
+	{
+		return leftDuty;
+	}
+
+	/**
+	 * @return Power of the right motor, -1023 to 1023
+	 */
+	public synchronized int getRightDuty()
+	{
+		return rightDuty;
+	}
+
+	/**
+	 * @return Frames run by the firmware
+	 */
+	public int getCommands()
+	{
+		return commands;
+	}
+
+	/**
+	 * @return Commands answered with an error
+	 */
+	public int getErrors()
+	{
+		return errors;
+	}
+
+	/**
+	 * @return Sequenced commands received twice and not run again
+	 */
+	public int getDuplicates()
+	{
+		return duplicates;
+	}
+
+	/**
+	 * @return Times the watchdog stopped the robot
+	 */
+	public int getResets()
+	{
+		return resets;
+	}
+
+	/**
+	 * @return Frames lost by the simulated link, both ways
+	 */
+	public int getDropped()
+	{
+		return dropped.get();
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int baud = args.length > 1 ? Integer.parseInt(args[1]) : 9600;
+		int jitter = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		float loss = args.length > 3 ? Float.parseFloat(args[3]) : 0;
+
+		RobotSimulator robot = new RobotSimulator("Zygote 1.2", System.nanoTime());
+		robot.setLink(baud, jitter, loss);
+		System.out.println("Listening on port " + robot.serve(port) + ", " + baud + " baud");
+		while(true)
+		{
+			Thread.sleep(1000);
+			double[] pose = robot.getPose();
+			System.out.println(String.format("Speed %5d %5d  x %6.2f y %6.2f heading %4.0f  commands %d errors %d duplicates %d resets %d dropped %d", robot.getLeftDuty(), robot.getRightDuty(), pose[0], pose[1], Math.toDegrees(pose[2]), robot.getCommands(), robot.getErrors(), robot.getDuplicates(), robot.getResets(), robot.getDropped()));
+		}
+	}
+}
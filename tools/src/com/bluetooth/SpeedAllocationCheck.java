@@ -0,0 +1,181 @@
+/**
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.bluetooth;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This tool checks that sending speeds allocates nothing once the connection
+ * runs: writeSpeed() on the calling thread, the encoding and the write on the
+ * writer thread and the watchdog. A connection to a RobotSimulator is given
+ * speeds at a steady rate, the bytes allocated by each of these threads are
+ * read before and after from the JVM. This is done a few times and the least
+ * is kept, the JIT compiling a method while the speeds are sent should not fail
+ * the check.
+ * <p>
+ * The reader thread is shown but not checked: the robot answers each speed
+ * with a line of text ("New speed set") and every line that's not a sample is
+ * handed to the listener as a String.
+ * It runs on a computer with a HotSpot JVM, the one that counts the bytes each
+ * thread allocates:
+ * 
+ * <pre>
+ * java -cp bin/classes:tools/bin com.bluetooth.SpeedAllocationCheck [commands]
+ * </pre>
+ * 
+ * It exits with 1 if any of the threads allocated.
+ */
+public class SpeedAllocationCheck implements Connection.Listener
+{
+	private static final String[] THREADS = { "main", "Connection writer", "Watchdog", "Connection reader" };
+	// The first ones must not allocate, the others are only shown
+	private static final int CHECKED = 3;
+	// Time between two speeds, 1000 per second is more than any controller gives
+	private static final long INTERVAL = TimeUnit.MICROSECONDS.toNanos(1000);
+	// The JIT and the class loading allocate now and then, a speed path that allocates does it in every round
+	private static final int ROUNDS = 3;
+
+	private final CountDownLatch connected = new CountDownLatch(1);
+
+	public void onConnected(Connection connection)
+	{
+		connected.countDown();
+	}
+
+	public void onRead(Connection connection, String line)
+	{
+
+	}
+
+	public void onWrite(Connection connection, String command)
+	{
+
+	}
+
+	public void onReconnecting(Connection connection, int attempt)
+	{
+		System.out.println("The link was lost, the check is not valid");
+		System.exit(2);
+	}
+
+	public void onReconnected(Connection connection)
+	{
+
+	}
+
+	public void onDisconnected(Connection connection, String reason)
+	{
+		System.out.println("Disconnected: " + reason);
+		System.exit(2);
+	}
+
+	/**
+	 * Gives speeds that change every time so none of them is dropped as
+	 * unchanged.
+	 */
+	private static void sendSpeeds(Connection connection, int commands)
+	{
+		for(int i = 0; i < commands; i++)
+		{
+			int speed = i % 511 - 255;
+			connection.writeSpeed(speed, -speed);
+			LockSupport.parkNanos(INTERVAL);
+		}
+	}
+
+	/**
+	 * @return Bytes allocated so far by each of the threads
+	 */
+	private static long[] getAllocated(com.sun.management.ThreadMXBean threads, long[] ids, long[] allocated)
+	{
+		for(int i = 0; i < ids.length; i++)
+		{
+			allocated[i] = threads.getThreadAllocatedBytes(ids[i]);
+		}
+		return allocated;
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		int commands = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+		RobotSimulator robot = new RobotSimulator("Zygote 1.2", 1);
+		SpeedAllocationCheck check = new SpeedAllocationCheck();
+		Connection connection = new Connection(new PipeTransport("Zygote", 4096, robot), check);
+		connection.connect();
+		if(!check.connected.await(5, TimeUnit.SECONDS))
+		{
+			System.out.println("Could not connect");
+			System.exit(2);
+		}
+		// The handshake, the probe and the JIT are done by the end of this
+		sendSpeeds(connection, commands);
+
+		long[] ids = new long[THREADS.length];
+		for(Thread thread : Thread.getAllStackTraces().keySet())
+		{
+			for(int i = 0; i < THREADS.length; i++)
+			{
+				if(thread.getName().equals(THREADS[i]))
+				{
+					ids[i] = thread.getId();
+				}
+			}
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long[] before = new long[ids.length];
+		long[] after = new long[ids.length];
+		// What reading the counters costs is not the connection's
+		getAllocated(threads, ids, before);
+		getAllocated(threads, ids, after);
+		long reading = after[0] - before[0];
+
+		long[] least = new long[ids.length];
+		for(int round = 0; round < ROUNDS; round++)
+		{
+			getAllocated(threads, ids, before);
+			sendSpeeds(connection, commands);
+			getAllocated(threads, ids, after);
+			for(int i = 0; i < ids.length; i++)
+			{
+				long bytes = after[i] - before[i] - (i == 0 ? reading : 0);
+				least[i] = round == 0 ? bytes : Math.min(least[i], bytes);
+			}
+		}
+		connection.cancel();
+
+		System.out.println(ROUNDS + " rounds of " + commands + " speeds sent, " + robot.getCommands() + " commands received by the robot, least allocated in a round:");
+		boolean allocated = false;
+		for(int i = 0; i < ids.length; i++)
+		{
+			long bytes = least[i];
+			if(i < CHECKED)
+			{
+				allocated |= bytes > 0;
+				System.out.println(String.format("%-18s %8d bytes allocated", THREADS[i], bytes));
+			}
+			else
+			{
+				System.out.println(String.format("%-18s %8d bytes allocated (the replies, not checked)", THREADS[i], bytes));
+			}
+		}
+		System.out.println(allocated ? "FAILED: the speed path allocates" : "OK: the speed path allocates nothing");
+		System.exit(allocated ? 1 : 0);
+	}
+}